@@ -5,11 +5,10 @@
 
 package cn.zenliu.assembler;
 
-import lombok.AllArgsConstructor;
-import lombok.Value;
 import lombok.experimental.Delegate;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
 import net.bytebuddy.description.ByteCodeElement;
-import net.bytebuddy.description.NamedElement;
 import net.bytebuddy.description.annotation.AnnotationList;
 import net.bytebuddy.description.field.FieldDescription;
 import net.bytebuddy.description.field.FieldList;
@@ -18,7 +17,11 @@ import net.bytebuddy.description.method.MethodList;
 import net.bytebuddy.description.method.ParameterDescription;
 import net.bytebuddy.description.method.ParameterList;
 import net.bytebuddy.description.type.*;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.scaffold.subclass.ConstructorStrategy;
 import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.implementation.MethodAccessorFactory;
+import net.bytebuddy.implementation.auxiliary.AuxiliaryType;
 import net.bytebuddy.implementation.bytecode.*;
 import net.bytebuddy.implementation.bytecode.assign.Assigner;
 import net.bytebuddy.implementation.bytecode.assign.InstanceCheck;
@@ -34,16 +37,20 @@ import net.bytebuddy.implementation.bytecode.member.MethodInvocation;
 import net.bytebuddy.implementation.bytecode.member.MethodReturn;
 import net.bytebuddy.implementation.bytecode.member.MethodVariableAccess;
 import net.bytebuddy.jar.asm.*;
+import net.bytebuddy.utility.OpenedClassReader;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.BiFunction;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.function.*;
 
 import static cn.zenliu.assembler.Assembler.Manipulate.Simple.*;
 import static net.bytebuddy.matcher.ElementMatchers.isAbstract;
 import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
 
 /**
  * @author Zen.Liu
@@ -55,22 +62,287 @@ public interface Assembler {
 
 
     }
-    class Stack<E> implements List<E>{
-        @Delegate
-        protected transient List<E> a;
+
+    /**
+     * Growable array stack, the top of stack is the last element.
+     * Range removal at the tail is O(1) and elements can be peeked by depth.
+     */
+    class Stack<E> extends AbstractList<E> implements RandomAccess {
+        protected Object[] a;
+        protected int size;
 
         public Stack() {
-            a=new ArrayList<>();
+            this(16);
+        }
+
+        public Stack(int capacity) {
+            a = new Object[Math.max(capacity, 4)];
+        }
+
+        /**
+         * ensure the capacity of backing array
+         */
+        protected void ensure(int capacity) {
+            if (capacity > a.length) a = Arrays.copyOf(a, Math.max(capacity, a.length << 1));
+        }
+
+        /**
+         * hook after an element stored at index
+         */
+        protected void stored(int index, E v) {
+        }
+
+        /**
+         * hook after elements moved inside backing array
+         */
+        protected void moved(int from, int to, int length) {
+        }
+
+        private void check(int index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
         }
 
         public void push(E v) {
-            a.add(v);
+            ensure(size + 1);
+            a[size] = v;
+            stored(size, v);
+            size++;
+            modCount++;
+        }
+
+        /**
+         * remove elements in range [from,to)
+         */
+        public void removeElement(int from, int to) {
+            removeRange(from, to);
+        }
+
+        /**
+         * remove top n elements
+         */
+        public void drop(int n) {
+            if (n < 0 || n > size) throw new IndexOutOfBoundsException("Drop: " + n + ", Size: " + size);
+            Arrays.fill(a, size - n, size, null);
+            size -= n;
+            modCount++;
+        }
+
+        public E pop() {
+            check(size - 1);
+            @SuppressWarnings("unchecked") E v = (E) a[--size];
+            a[size] = null;
+            modCount++;
+            return v;
         }
-        public void removeElement(int from ,int to){
-            a.removeAll(a.subList(from,to));
+
+        /**
+         * @param depth 0 for the top
+         */
+        @SuppressWarnings("unchecked")
+        public E peek(int depth) {
+            check(size - 1 - depth);
+            return (E) a[size - 1 - depth];
         }
-        public E pop(){
-            return a.remove(a.size()-1);
+
+        public E peek() {
+            return peek(0);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E get(int index) {
+            check(index);
+            return (E) a[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E set(int index, E element) {
+            check(index);
+            E old = (E) a[index];
+            a[index] = element;
+            stored(index, element);
+            return old;
+        }
+
+        @Override
+        public void add(int index, E element) {
+            if (index == size) {
+                push(element);
+                return;
+            }
+            check(index);
+            ensure(size + 1);
+            System.arraycopy(a, index, a, index + 1, size - index);
+            moved(index, index + 1, size - index);
+            a[index] = element;
+            stored(index, element);
+            size++;
+            modCount++;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E remove(int index) {
+            check(index);
+            E old = (E) a[index];
+            removeRange(index, index + 1);
+            return old;
+        }
+
+        @Override
+        protected void removeRange(int from, int to) {
+            if (from < 0 || from > to || to > size) throw new IndexOutOfBoundsException("Range: [" + from + "," + to + "), Size: " + size);
+            if (from == to) return;
+            int tail = size - to;
+            if (tail > 0) {
+                System.arraycopy(a, to, a, from, tail);
+                moved(to, from, tail);
+            }
+            drop(to - from);
+        }
+
+        @Override
+        public void clear() {
+            drop(size);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Computational category of a slot on frame
+     */
+    interface Category {
+        int TOP = 0;
+        int INT = 1;
+        int FLOAT = 2;
+        int LONG = 3;
+        int DOUBLE = 4;
+        int REF = 5;
+
+        static int of(TypeDescription type) {
+            if (type == ByteCodeManipulates.TOP) return TOP;
+            if (type == ByteCodeManipulates.INT) return INT;
+            if (type == ByteCodeManipulates.LONG) return LONG;
+            if (type == ByteCodeManipulates.FLOAT) return FLOAT;
+            if (type == ByteCodeManipulates.DOUBLE) return DOUBLE;
+            if (!type.isPrimitive()) return REF;
+            switch (type.getName()) {
+                case "long":
+                    return LONG;
+                case "float":
+                    return FLOAT;
+                case "double":
+                    return DOUBLE;
+                case "void":
+                    return TOP;
+                default:
+                    return INT;
+            }
+        }
+
+        static int size(int category) {
+            return category == LONG || category == DOUBLE ? 2 : 1;
+        }
+    }
+
+    /**
+     * Stack of types with {@link Category} cached per slot
+     */
+    class TypeStack extends Stack<TypeDescription> {
+        protected int[] tags;
+        /**
+         * chain[i] is the snapshot of slots [0,i], valid below {@link #valid}
+         */
+        protected Slots[] chain;
+        protected int valid;
+        /**
+         * known constant values, reset when slot stored
+         */
+        protected Object[] values;
+
+        public TypeStack() {
+            super();
+            tags = new int[a.length];
+            chain = new Slots[a.length];
+            values = new Object[a.length];
+        }
+
+        @Override
+        protected void ensure(int capacity) {
+            super.ensure(capacity);
+            if (tags.length < a.length) {
+                tags = Arrays.copyOf(tags, a.length);
+                chain = Arrays.copyOf(chain, a.length);
+                values = Arrays.copyOf(values, a.length);
+            }
+        }
+
+        @Override
+        protected void stored(int index, TypeDescription v) {
+            tags[index] = Category.of(v);
+            values[index] = null;
+            if (index < valid) valid = index;
+        }
+
+        @Override
+        protected void moved(int from, int to, int length) {
+            System.arraycopy(tags, from, tags, to, length);
+            System.arraycopy(values, from, values, to, length);
+            valid = Math.min(valid, Math.min(from, to));
+        }
+
+        /**
+         * @return the known constant value of slot at index, null if unknown
+         */
+        public Object value(int index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            return values[index];
+        }
+
+        /**
+         * mark slot at index holds a known constant value
+         */
+        public void value(int index, Object value) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            values[index] = value;
+        }
+
+        /**
+         * snapshot current slots, only slots changed since last snapshot are interned again.
+         *
+         * @param pool the pool to intern slots
+         */
+        public Slots snapshot(Slots.Pool pool) {
+            if (size == 0) return Slots.EMPTY;
+            int i = Math.min(valid, size);
+            Slots s = i == 0 ? Slots.EMPTY : chain[i - 1];
+            for (; i < size; i++) {
+                s = pool.append(s, (TypeDescription) a[i]);
+                chain[i] = s;
+            }
+            valid = size;
+            return s;
+        }
+
+        /**
+         * @return the {@link Category} of slot at index
+         */
+        public int tag(int index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            return tags[index];
+        }
+
+        /**
+         * @param depth 0 for the top
+         * @return the {@link Category} of slot at depth
+         */
+        public int peekTag(int depth) {
+            return tag(size - 1 - depth);
         }
     }
     class SimpleComposable implements Implementation.Composable {
@@ -96,6 +368,617 @@ public interface Assembler {
         }
     }
 
+    /**
+     * Immutable snapshot of frame slots as a persistent list sharing its prefixes.
+     * Slots interned by the same {@link Pool} are equal only when they are identical.
+     */
+    final class Slots {
+        public static final Slots EMPTY = new Slots(null, null, 0, 0);
+        final Slots parent;
+        final TypeDescription type;
+        final int id;
+        final int size;
+        final int hash;
+        final int serial;
+
+        private Slots(Slots parent, TypeDescription type, int id, int serial) {
+            this.parent = parent;
+            this.type = type;
+            this.id = id;
+            this.serial = serial;
+            this.size = parent == null ? 0 : parent.size + 1;
+            this.hash = parent == null ? 1 : 31 * parent.hash + id;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * @param n the size of prefix
+         * @return the prefix of this with n slots
+         */
+        public Slots prefix(int n) {
+            assert n >= 0 && n <= size : "invalid prefix size " + n + " of " + size;
+            Slots s = this;
+            while (s.size > n) s = s.parent;
+            return s;
+        }
+
+        /**
+         * @return slots in range [from,size) as list
+         */
+        public List<TypeDescription> toList(int from) {
+            TypeDescription[] out = new TypeDescription[size - from];
+            for (Slots s = this; s.size > from; s = s.parent) out[s.size - 1 - from] = s.type;
+            return Arrays.asList(out);
+        }
+
+        public List<TypeDescription> toList() {
+            return toList(0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Slots)) return false;
+            Slots s = (Slots) o, t = this;
+            if (s.size != t.size || s.hash != t.hash) return false;
+            for (; t != s && t.size > 0; t = t.parent, s = s.parent) {
+                if (!t.type.equals(s.type)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return toList().toString();
+        }
+
+        /**
+         * Intern pool for slots and types
+         */
+        public static final class Pool {
+            final Map<TypeDescription, Integer> identity = new IdentityHashMap<>();
+            final Map<TypeDescription, Integer> types = new HashMap<>();
+            final Map<Long, Slots> slots = new HashMap<>();
+            int serial;
+            int holders;
+
+            /**
+             * @return the interned id of type, holder types (like TOP) are interned by identity
+             */
+            public int id(TypeDescription type) {
+                Integer id = identity.get(type);
+                if (id == null) {
+                    id = type instanceof ByteCodeManipulates.HolderType
+                            ? Integer.MAX_VALUE - holders++
+                            : types.computeIfAbsent(type, x -> types.size() + 1);
+                    identity.put(type, id);
+                }
+                return id;
+            }
+
+            /**
+             * @return the interned slots of parent with type appended
+             */
+            public Slots append(Slots parent, TypeDescription type) {
+                int id = id(type);
+                return slots.computeIfAbsent(((long) parent.serial << 32) | id, k -> new Slots(parent, type, id, ++serial));
+            }
+        }
+    }
+
+    /**
+     * Lazily built index of declared fields and methods of a type.
+     * An instance could be shared by all Compute of the same target type.
+     */
+    final class Members {
+        final TypeDescription type;
+        private volatile Map<String, FieldDescription.InDefinedShape> fields;
+        private volatile Map<String, Object> methods;
+
+        Members(TypeDescription type) {
+            this.type = type;
+        }
+
+        public static Members of(TypeDescription type) {
+            return new Members(type.asErasure());
+        }
+
+        public TypeDescription type() {
+            return type;
+        }
+
+        private Map<String, FieldDescription.InDefinedShape> fields() {
+            Map<String, FieldDescription.InDefinedShape> m = fields;
+            if (m == null) {
+                m = new HashMap<>();
+                for (FieldDescription.InDefinedShape f : type.getDeclaredFields()) m.put(f.getActualName(), f);
+                fields = m;
+            }
+            return m;
+        }
+
+        /**
+         * @return methods indexed by name, value is a method or a list of overloads
+         */
+        private Map<String, Object> methods() {
+            Map<String, Object> m = methods;
+            if (m == null) {
+                m = new HashMap<>();
+                for (MethodDescription.InDefinedShape d : type.getDeclaredMethods()) {
+                    m.merge(d.getInternalName(), d, (a, b) -> {
+                        if (a instanceof List) {
+                            @SuppressWarnings("unchecked") List<Object> l = (List<Object>) a;
+                            l.add(b);
+                            return l;
+                        }
+                        List<Object> l = new ArrayList<>(2);
+                        l.add(a);
+                        l.add(b);
+                        return l;
+                    });
+                }
+                methods = m;
+            }
+            return m;
+        }
+
+        /**
+         * @param name field name
+         * @return the declared field
+         * @throws IllegalStateException if no such field
+         */
+        public FieldDescription.InDefinedShape field(String name) {
+            FieldDescription.InDefinedShape f = fields().get(name);
+            if (f == null) throw new IllegalStateException("no field named " + name + " declared in " + type);
+            return f;
+        }
+
+        /**
+         * @return declared method with the same name and descriptor or null
+         */
+        public MethodDescription.InDefinedShape method(String name, String descriptor) {
+            Object o = methods().get(name);
+            if (o == null) return null;
+            if (o instanceof MethodDescription.InDefinedShape) {
+                MethodDescription.InDefinedShape d = (MethodDescription.InDefinedShape) o;
+                return d.getDescriptor().equals(descriptor) ? d : null;
+            }
+            for (Object x : (List<?>) o) {
+                MethodDescription.InDefinedShape d = (MethodDescription.InDefinedShape) x;
+                if (d.getDescriptor().equals(descriptor)) return d;
+            }
+            return null;
+        }
+
+        /**
+         * @return does this type declared a method with same signature of m
+         */
+        public boolean declares(MethodDescription m) {
+            return method(m.getInternalName(), m.getDescriptor()) != null;
+        }
+    }
+
+    /**
+     * Peephole optimizer stands between appenders and the real MethodVisitor.
+     * It holds at most one pending instruction and rewrites:
+     * <ul>
+     *     <li>{@code xSTORE n; xLOAD n} to {@code DUP; xSTORE n}</li>
+     *     <li>{@code DUP; POP} and {@code DUP2; POP2} to nothing</li>
+     *     <li>{@code T.valueOf; T.xValue} (box then unbox) to nothing</li>
+     *     <li>{@code CHECKCAST T; CHECKCAST T} to {@code CHECKCAST T}</li>
+     *     <li>{@code GOTO L; L:} to {@code L:}</li>
+     * </ul>
+     * Pending instruction is flushed before any other visit, so nothing is rewritten across labels or frames.
+     */
+    class Peephole extends MethodVisitor {
+        private static final int NONE = -1;
+        private int op = NONE;
+        private int var;
+        private String owner;
+        private String desc;
+        private Label label;
+        private int rewrites;
+        private int extra;
+
+        public Peephole(MethodVisitor mv) {
+            super(OpenedClassReader.ASM_API, mv);
+        }
+
+        /**
+         * @return count of rewrites applied
+         */
+        public int rewrites() {
+            return rewrites;
+        }
+
+        /**
+         * @return max words the rewritten code pushes above the original code, 2 by a {@code DUP2} of a long or double,
+         * 1 by a {@code DUP}, 0 if no {@code xSTORE n; xLOAD n} is rewritten. It should be added to the max stack of the original code.
+         */
+        public int extra() {
+            return extra;
+        }
+
+        /**
+         * emit the pending instruction
+         */
+        public void flush() {
+            int o = op;
+            if (o == NONE) return;
+            op = NONE;
+            switch (o) {
+                case Opcodes.DUP:
+                case Opcodes.DUP2:
+                    super.visitInsn(o);
+                    break;
+                case Opcodes.INVOKESTATIC:
+                    super.visitMethodInsn(o, owner, "valueOf", desc, false);
+                    break;
+                case Opcodes.CHECKCAST:
+                    super.visitTypeInsn(o, owner);
+                    break;
+                case Opcodes.GOTO:
+                    super.visitJumpInsn(o, label);
+                    break;
+                default:
+                    super.visitVarInsn(o, var);
+            }
+        }
+
+        private static boolean isStore(int opcode) {
+            return opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE;
+        }
+
+        /**
+         * @return is a primitive boxing by {@code Wrapper.valueOf(P)Wrapper}
+         */
+        private static boolean isBoxing(int opcode, String owner, String name, String desc) {
+            return opcode == Opcodes.INVOKESTATIC
+                    && name.equals("valueOf")
+                    && owner.startsWith("java/lang/")
+                    && desc.length() == owner.length() + 5
+                    && desc.charAt(0) == '(' && desc.charAt(2) == ')'
+                    && "ZBCSIJFD".indexOf(desc.charAt(1)) >= 0
+                    && desc.startsWith(owner, 4);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if ((op == Opcodes.DUP && opcode == Opcodes.POP) || (op == Opcodes.DUP2 && opcode == Opcodes.POP2)) {
+                op = NONE;
+                rewrites++;
+                return;
+            }
+            flush();
+            if (opcode == Opcodes.DUP || opcode == Opcodes.DUP2) {
+                op = opcode;
+                return;
+            }
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int v) {
+            if (isStore(op) && v == var && opcode == op - (Opcodes.ISTORE - Opcodes.ILOAD)) {
+                boolean wide = op == Opcodes.LSTORE || op == Opcodes.DSTORE;
+                extra = Math.max(extra, wide ? 2 : 1);
+                super.visitInsn(wide ? Opcodes.DUP2 : Opcodes.DUP);
+                super.visitVarInsn(op, var);
+                op = NONE;
+                rewrites++;
+                return;
+            }
+            flush();
+            if (isStore(opcode)) {
+                op = opcode;
+                var = v;
+                return;
+            }
+            super.visitVarInsn(opcode, v);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            if (op == Opcodes.INVOKESTATIC
+                    && opcode == Opcodes.INVOKEVIRTUAL
+                    && owner.equals(this.owner)
+                    && name.endsWith("Value")
+                    && descriptor.length() == 3
+                    && descriptor.charAt(2) == desc.charAt(1)
+                    && descriptor.startsWith("()")) {
+                op = NONE;
+                rewrites++;
+                return;
+            }
+            flush();
+            if (isBoxing(opcode, owner, name, descriptor)) {
+                op = opcode;
+                this.owner = owner;
+                this.desc = descriptor;
+                return;
+            }
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            if (op == Opcodes.CHECKCAST && opcode == Opcodes.CHECKCAST && type.equals(owner)) {
+                rewrites++;
+                return;
+            }
+            flush();
+            if (opcode == Opcodes.CHECKCAST) {
+                op = opcode;
+                owner = type;
+                return;
+            }
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label lbl) {
+            flush();
+            if (opcode == Opcodes.GOTO) {
+                op = opcode;
+                label = lbl;
+                return;
+            }
+            super.visitJumpInsn(opcode, lbl);
+        }
+
+        @Override
+        public void visitLabel(Label lbl) {
+            if (op == Opcodes.GOTO && label == lbl) {
+                op = NONE;
+                rewrites++;
+            } else flush();
+            super.visitLabel(lbl);
+        }
+
+        //@formatter:off
+        @Override public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {flush();super.visitFrame(type, numLocal, local, numStack, stack);}
+        @Override public void visitIntInsn(int opcode, int operand) {flush();super.visitIntInsn(opcode, operand);}
+        @Override public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {flush();super.visitFieldInsn(opcode, owner, name, descriptor);}
+        @Override public void visitInvokeDynamicInsn(String name, String descriptor, Handle bsm, Object... args) {flush();super.visitInvokeDynamicInsn(name, descriptor, bsm, args);}
+        @Override public void visitLdcInsn(Object value) {flush();super.visitLdcInsn(value);}
+        @Override public void visitIincInsn(int v, int increment) {flush();super.visitIincInsn(v, increment);}
+        @Override public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {flush();super.visitTableSwitchInsn(min, max, dflt, labels);}
+        @Override public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {flush();super.visitLookupSwitchInsn(dflt, keys, labels);}
+        @Override public void visitMultiANewArrayInsn(String descriptor, int dims) {flush();super.visitMultiANewArrayInsn(descriptor, dims);}
+        @Override public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {flush();return super.visitInsnAnnotation(typeRef, typePath, descriptor, visible);}
+        @Override public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {flush();super.visitTryCatchBlock(start, end, handler, type);}
+        @Override public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {flush();super.visitLocalVariable(name, descriptor, signature, start, end, index);}
+        @Override public void visitLineNumber(int line, Label start) {flush();super.visitLineNumber(line, start);}
+        @Override public void visitMaxs(int maxStack, int maxLocals) {flush();super.visitMaxs(maxStack, maxLocals);}
+        @Override public void visitEnd() {flush();super.visitEnd();}
+        //@formatter:on
+    }
+
+    /**
+     * Records labels, jumps and sizes of each applied StackManipulation while writing through to the delegate,
+     * then runs a linear dataflow over them to compute exact max stack and max locals.
+     * A StackManipulation is treated as one step: its labels are at its start and its jumps at its end.
+     * It also records which labels carry a frame, see {@link #unframed()}.
+     */
+    class Flow extends MethodVisitor {
+        static final class Step {
+            StackManipulation.Size size;
+            List<Label> labels;
+            List<Label> jumps;
+            boolean terminal;
+            /**
+             * known stack depth after this step, -1 for computed by size impact
+             */
+            int after = -1;
+        }
+
+        final Stack<Step> steps = new Stack<>();
+        final Map<Label, Integer> handlers = new HashMap<>();
+        final Set<Label> framed = new HashSet<>();
+        final Set<Label> required = new LinkedHashSet<>();
+        final List<Label> pending = new ArrayList<>(2);
+        Step current;
+        int maxLocals;
+        boolean ended;
+
+        public Flow(MethodVisitor mv) {
+            super(OpenedClassReader.ASM_API, mv);
+        }
+
+        /**
+         * apply and record a StackManipulation
+         */
+        public StackManipulation.Size apply(StackManipulation m, Implementation.Context c) {
+            current = new Step();
+            current.size = m.apply(this, c);
+            steps.push(current);
+            current = null;
+            return steps.peek().size;
+        }
+
+        /**
+         * apply and record a ByteCodeAppender fragment
+         *
+         * @param after the stack depth after the fragment
+         */
+        public ByteCodeAppender.Size apply(ByteCodeAppender m, Implementation.Context c, MethodDescription method, int after) {
+            current = new Step();
+            ByteCodeAppender.Size size = m.apply(this, c, method);
+            current.size = new StackManipulation.Size(0, size.getOperandStackSize());
+            current.after = after;
+            steps.push(current);
+            current = null;
+            maxLocals = Math.max(maxLocals, size.getLocalVariableSize());
+            return size;
+        }
+
+        private Step step() {
+            if (current == null) throw new IllegalStateException("visit outside of a recorded StackManipulation");
+            return current;
+        }
+
+        private void local(int index, int size) {
+            maxLocals = Math.max(maxLocals, index + size);
+        }
+
+        private void jump(Label label) {
+            Step s = step();
+            if (s.jumps == null) s.jumps = new ArrayList<>(2);
+            s.jumps.add(label);
+            required.add(label);
+        }
+
+        private void insn(boolean terminal) {
+            step().terminal = terminal;
+            ended = terminal;
+            pending.clear();
+        }
+
+        /**
+         * @return labels of branch targets, handlers or code after an unconditional transfer which have no frame
+         */
+        public List<Label> unframed() {
+            List<Label> r = new ArrayList<>();
+            for (Label l : required) if (!framed.contains(l)) r.add(l);
+            return r;
+        }
+
+        /**
+         * @return max locals referenced by written instructions
+         */
+        public int maxLocals() {
+            return maxLocals;
+        }
+
+        /**
+         * @return max stack by dataflow of recorded steps
+         */
+        public int maxStack() {
+            Map<Label, Integer> at = new HashMap<>(handlers);
+            int max = 0;
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                max = 0;
+                int depth = 0;
+                boolean live = true;
+                for (Step s : steps) {
+                    if (s.labels != null) for (Label l : s.labels) {
+                        Integer known = at.get(l);
+                        if (live) {
+                            if (known == null) {
+                                at.put(l, depth);
+                                changed = true;
+                            }
+                        } else if (known != null) {
+                            depth = known;
+                            live = true;
+                        }
+                    }
+                    if (!live) continue;
+                    max = Math.max(max, depth + s.size.getMaximalSize());
+                    depth = s.after >= 0 ? s.after : depth + s.size.getSizeImpact();
+                    if (s.jumps != null) for (Label l : s.jumps) {
+                        if (!at.containsKey(l)) {
+                            at.put(l, depth);
+                            changed = true;
+                        }
+                    }
+                    if (s.terminal) live = false;
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            Step s = step();
+            if (s.labels == null) s.labels = new ArrayList<>(1);
+            s.labels.add(label);
+            if (ended) required.add(label);
+            pending.add(label);
+            super.visitLabel(label);
+        }
+
+        @Override
+        public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+            framed.addAll(pending);
+            super.visitFrame(type, numLocal, local, numStack, stack);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            insn((opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW);
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            jump(label);
+            insn(opcode == Opcodes.GOTO);
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            jump(dflt);
+            for (Label l : labels) jump(l);
+            insn(true);
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            jump(dflt);
+            for (Label l : labels) jump(l);
+            insn(true);
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int index) {
+            local(index, opcode == Opcodes.LLOAD || opcode == Opcodes.DLOAD || opcode == Opcodes.LSTORE || opcode == Opcodes.DSTORE ? 2 : 1);
+            insn(false);
+            super.visitVarInsn(opcode, index);
+        }
+
+        @Override
+        public void visitIincInsn(int index, int increment) {
+            local(index, 1);
+            insn(false);
+            super.visitIincInsn(index, increment);
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            handlers.put(handler, 1);
+            required.add(handler);
+            super.visitTryCatchBlock(start, end, handler, type);
+        }
+
+        //@formatter:off
+        @Override public void visitIntInsn(int opcode, int operand) {insn(false);super.visitIntInsn(opcode, operand);}
+        @Override public void visitTypeInsn(int opcode, String type) {insn(false);super.visitTypeInsn(opcode, type);}
+        @Override public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {insn(false);super.visitFieldInsn(opcode, owner, name, descriptor);}
+        @Override public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {insn(false);super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);}
+        @Override public void visitInvokeDynamicInsn(String name, String descriptor, Handle bsm, Object... args) {insn(false);super.visitInvokeDynamicInsn(name, descriptor, bsm, args);}
+        @Override public void visitLdcInsn(Object value) {insn(false);super.visitLdcInsn(value);}
+        @Override public void visitMultiANewArrayInsn(String descriptor, int dims) {insn(false);super.visitMultiANewArrayInsn(descriptor, dims);}
+        //@formatter:on
+    }
+
     interface ByteCodeManipulates extends ByteCodeAppender {
         TypeDescription INT = TypeDescription.ForLoadedType.of(int.class);
         TypeDescription LONG = TypeDescription.ForLoadedType.of(long.class);
@@ -105,6 +988,12 @@ public interface Assembler {
         TypeDescription SHORT = TypeDescription.ForLoadedType.of(short.class);
         TypeDescription BYTE = TypeDescription.ForLoadedType.of(byte.class);
         TypeDescription BOOL = TypeDescription.ForLoadedType.of(boolean.class);
+        MethodDescription STRING_HASH_CODE = TypeDescription.STRING.getDeclaredMethods().filter(named("hashCode").and(takesArguments(0))).getOnly();
+        MethodDescription STRING_EQUALS = TypeDescription.STRING.getDeclaredMethods().filter(named("equals").and(takesArguments(Object.class))).getOnly();
+        MethodDescription ARRAY_COPY = TypeDescription.ForLoadedType.of(System.class).getDeclaredMethods().filter(named("arraycopy")).getOnly();
+        MethodDescription OBJECT_CLONE = TypeDescription.OBJECT.getDeclaredMethods().filter(named("clone")).getOnly();
+        MethodDescription MATH_MAX = TypeDescription.ForLoadedType.of(Math.class).getDeclaredMethods().filter(named("max").and(takesArguments(int.class, int.class))).getOnly();
+        MethodDescription LOOKUP = TypeDescription.ForLoadedType.of(MethodHandles.class).getDeclaredMethods().filter(named("lookup")).getOnly();
 
 
         abstract class HolderType extends TypeDescription.AbstractBase {
@@ -246,34 +1135,87 @@ public interface Assembler {
             }
         }
 
+        /**
+         * A set of primitive types encoded as bitmask of {@link #kind(TypeDescription)}
+         */
         class LikeType extends HolderType {
-            final TypeDescription[] targets;
+            public static final int K_BOOL = 1;
+            public static final int K_BYTE = 1 << 1;
+            public static final int K_CHAR = 1 << 2;
+            public static final int K_SHORT = 1 << 3;
+            public static final int K_INT = 1 << 4;
+            public static final int K_LONG = 1 << 5;
+            public static final int K_FLOAT = 1 << 6;
+            public static final int K_DOUBLE = 1 << 7;
+            public static final int K_VOID = 1 << 8;
+            final int mask;
+
+            LikeType(int mask) {
+                this.mask = mask;
+            }
 
             LikeType(TypeDescription... targets) {
-                this.targets = targets;
+                int m = 0;
+                for (TypeDescription t : targets) m |= kind(t);
+                this.mask = m;
+            }
+
+            /**
+             * @return the kind bit of a primitive type, 0 for others
+             */
+            public static int kind(TypeDescription type) {
+                if (type == INT) return K_INT;
+                if (type == LONG) return K_LONG;
+                if (type == BOOL) return K_BOOL;
+                if (type == DOUBLE) return K_DOUBLE;
+                if (type == FLOAT) return K_FLOAT;
+                if (type == CHAR) return K_CHAR;
+                if (type == BYTE) return K_BYTE;
+                if (type == SHORT) return K_SHORT;
+                if (type instanceof HolderType || !type.isPrimitive()) return 0;
+                switch (type.getName()) {
+                    case "int":
+                        return K_INT;
+                    case "long":
+                        return K_LONG;
+                    case "boolean":
+                        return K_BOOL;
+                    case "double":
+                        return K_DOUBLE;
+                    case "float":
+                        return K_FLOAT;
+                    case "char":
+                        return K_CHAR;
+                    case "byte":
+                        return K_BYTE;
+                    case "short":
+                        return K_SHORT;
+                    default:
+                        return K_VOID;
+                }
+            }
+
+            public boolean contains(int kind) {
+                return (mask & kind) != 0;
             }
 
             @Override
             public boolean isAssignableFrom(TypeDescription typeDescription) {
-                for (TypeDescription t : targets) {
-                    if (t.isAssignableFrom(typeDescription)) return true;
-                }
-                return false;
+                return typeDescription instanceof LikeType
+                        ? (mask & ((LikeType) typeDescription).mask) != 0
+                        : (mask & kind(typeDescription)) != 0;
             }
 
             @Override
             public boolean isAssignableTo(TypeDescription typeDescription) {
-                for (TypeDescription t : targets) {
-                    if (t.isAssignableTo(typeDescription)) return true;
-                }
-                return false;
+                return isAssignableFrom(typeDescription);
             }
 
         }
 
 
-        TypeDescription INT_LIKE = new LikeType(INT, FLOAT, LONG, DOUBLE, BOOL, SHORT, BYTE, CHAR);
-        TypeDescription INT_NUM_LIKE = new LikeType(INT, FLOAT, LONG, DOUBLE, SHORT, BYTE, CHAR);
+        TypeDescription INT_LIKE = new LikeType(LikeType.K_INT | LikeType.K_BOOL | LikeType.K_SHORT | LikeType.K_BYTE | LikeType.K_CHAR);
+        TypeDescription INT_NUM_LIKE = new LikeType(LikeType.K_INT | LikeType.K_SHORT | LikeType.K_BYTE | LikeType.K_CHAR);
         TypeDescription TOP = new HolderType() {
         };
 
@@ -307,43 +1249,46 @@ public interface Assembler {
         }
 
         enum Simple implements Manipulate {
-            IAND(Opcodes.IAND, StackSize.SINGLE),
-            LAND(Opcodes.LAND, StackSize.DOUBLE),
-            DCMPG(Opcodes.DCMPG, StackSize.DOUBLE),
-            DCMPL(Opcodes.DCMPL, StackSize.DOUBLE),
-            FCMPG(Opcodes.FCMPG, StackSize.SINGLE),
-            FCMPL(Opcodes.FCMPL, StackSize.SINGLE),
-            LCMP(Opcodes.LCMP, StackSize.DOUBLE),
-            DNEG(Opcodes.DNEG, StackSize.DOUBLE),
-            FNEG(Opcodes.FNEG, StackSize.SINGLE),
-            INEG(Opcodes.INEG, StackSize.SINGLE),
-            LNEG(Opcodes.LNEG, StackSize.DOUBLE),
-            IOR(Opcodes.IOR, StackSize.SINGLE),
-            LOR(Opcodes.LOR, StackSize.DOUBLE),
-            SWAP(Opcodes.SWAP, StackSize.ZERO),
-            ATHROW(Opcodes.ATHROW, StackSize.SINGLE),
-            IXOR(Opcodes.IXOR, StackSize.SINGLE),
-            LXOR(Opcodes.LXOR, StackSize.DOUBLE);
+            IAND(Opcodes.IAND, -1),
+            LAND(Opcodes.LAND, -2),
+            DCMPG(Opcodes.DCMPG, -3),
+            DCMPL(Opcodes.DCMPL, -3),
+            FCMPG(Opcodes.FCMPG, -1),
+            FCMPL(Opcodes.FCMPL, -1),
+            LCMP(Opcodes.LCMP, -3),
+            DNEG(Opcodes.DNEG, 0),
+            FNEG(Opcodes.FNEG, 0),
+            INEG(Opcodes.INEG, 0),
+            LNEG(Opcodes.LNEG, 0),
+            IOR(Opcodes.IOR, -1),
+            LOR(Opcodes.LOR, -2),
+            SWAP(Opcodes.SWAP, 0),
+            ATHROW(Opcodes.ATHROW, -1),
+            IXOR(Opcodes.IXOR, -1),
+            LXOR(Opcodes.LXOR, -2);
             private final int opcode;
-            private final StackSize stackSize;
+            private final Size size;
 
-            Simple(int opcode, StackSize stackSize) {
+            /**
+             * @param impact the stack size impact of the instruction
+             */
+            Simple(int opcode, int impact) {
                 this.opcode = opcode;
-                this.stackSize = stackSize;
+                this.size = new Size(impact, Math.max(impact, 0));
             }
 
             @Override
             public Size apply(MethodVisitor methodVisitor, Implementation.Context implementationContext) {
                 methodVisitor.visitInsn(opcode);
-                return stackSize.toDecreasingSize();
+                return size;
             }
 
 
         }
 
-        Size DEC1 = new Size(-1, 1);
-        Size DEC2 = new Size(-2, 2);
-        Size INC1 = new Size(1, 2);
+        Size DEC1 = new Size(-1, 0);
+        Size DEC2 = new Size(-2, 0);
+        Size INC1 = new Size(1, 1);
 
         //@formatter:off
         Manipulate NOP=(v,c)->{v.visitInsn(Opcodes.NOP);return Size.ZERO;};
@@ -365,6 +1310,49 @@ public interface Assembler {
 //    Manipulate I2S=(v,c)->{v.visitInsn(Opcodes.I2S);return Size.ZERO;};
 
         //@formatter:on
+
+        /**
+         * primitive conversion, narrow int types are converted from int by I2B, I2C or I2S,
+         * boolean is taken as 0 or 1 of int.
+         */
+        static Manipulate CONVERT(TypeDescription from, TypeDescription to) {
+            char f = lane(from), t = lane(to);
+            int[] ops = new int[2];
+            int n = 0;
+            if (f != t) ops[n++] = Opcodes.I2L + "IJFD".indexOf(f) * 3 + "IJFD".replace(String.valueOf(f), "").indexOf(t);
+            if (!from.equals(to))
+                switch (ByteCodeManipulates.LikeType.kind(to)) {
+                    //@formatter:off
+                    case ByteCodeManipulates.LikeType.K_BYTE: ops[n++] = Opcodes.I2B; break;
+                    case ByteCodeManipulates.LikeType.K_CHAR: ops[n++] = Opcodes.I2C; break;
+                    case ByteCodeManipulates.LikeType.K_SHORT: ops[n++] = Opcodes.I2S; break;
+                    //@formatter:on
+                }
+            int[] code = Arrays.copyOf(ops, n);
+            int impact = to.getStackSize().getSize() - from.getStackSize().getSize();
+            Size size = new Size(impact, Math.max(0, impact));
+            return (v, c) -> {
+                for (int op : code) v.visitInsn(op);
+                return size;
+            };
+        }
+
+        /**
+         * @return computational type of a primitive: I, J, F or D
+         */
+        static char lane(TypeDescription t) {
+            switch (ByteCodeManipulates.LikeType.kind(t)) {
+                //@formatter:off
+                case ByteCodeManipulates.LikeType.K_LONG: return 'J';
+                case ByteCodeManipulates.LikeType.K_FLOAT: return 'F';
+                case ByteCodeManipulates.LikeType.K_DOUBLE: return 'D';
+                case ByteCodeManipulates.LikeType.K_VOID: throw new IllegalArgumentException("convert void");
+                case 0: throw new IllegalArgumentException("convert none primitive " + t);
+                default: return 'I';
+                //@formatter:on
+            }
+        }
+
         static Manipulate IINC(int varIdx, int v) {
             return (mv, c) -> {
                 mv.visitIincInsn(varIdx, v);
@@ -372,6 +1360,22 @@ public interface Assembler {
             };
         }
 
+        /**
+         * new array of component with the length on stack
+         */
+        static Manipulate NEWARRAY(TypeDescription component) {
+            if (!component.isPrimitive()) return (v, c) -> {
+                v.visitTypeInsn(Opcodes.ANEWARRAY, component.getInternalName());
+                return Size.ZERO;
+            };
+            int t = Opcodes.T_BOOLEAN + "ZCFDBSIJ".indexOf(component.getDescriptor().charAt(0));
+            assert t >= Opcodes.T_BOOLEAN : "invalid array component " + component;
+            return (v, c) -> {
+                v.visitIntInsn(Opcodes.NEWARRAY, t);
+                return Size.ZERO;
+            };
+        }
+
         static Manipulate GOTO(Label label) {
             return (v, c) -> {
                 v.visitJumpInsn(Opcodes.GOTO, label);
@@ -393,6 +1397,56 @@ public interface Assembler {
             };
         }
 
+        /**
+         * use the cost model of javac: tableswitch if its space plus three times its time cost is not greater than lookupswitch
+         *
+         * @param keys sorted distinct keys
+         * @return should use tableswitch
+         */
+        static boolean dense(int[] keys) {
+            int n = keys.length;
+            if (n == 0) return false;
+            long tableSpace = 4 + ((long) keys[n - 1] - keys[0] + 1);
+            long lookupSpace = 3 + 2L * n;
+            return tableSpace + 3 * 3 <= lookupSpace + 3L * n;
+        }
+
+        /**
+         * switch on an int, choose TABLESWITCH or LOOKUPSWITCH by density of keys
+         *
+         * @param dflt   the default label
+         * @param keys   distinct keys, in any order
+         * @param labels the label of each key
+         */
+        static Manipulate SWITCH(Label dflt, int[] keys, Label[] labels) {
+            if (keys.length != labels.length) throw new IllegalArgumentException("keys and labels length not match");
+            int n = keys.length;
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingInt(i -> keys[i]));
+            int[] k = new int[n];
+            Label[] l = new Label[n];
+            for (int i = 0; i < n; i++) {
+                k[i] = keys[order[i]];
+                l[i] = labels[order[i]];
+                if (i > 0 && k[i] == k[i - 1]) throw new IllegalArgumentException("duplicate switch key " + k[i]);
+            }
+            if (dense(k)) {
+                int min = k[0], max = k[n - 1];
+                Label[] table = new Label[max - min + 1];
+                Arrays.fill(table, dflt);
+                for (int i = 0; i < n; i++) table[k[i] - min] = l[i];
+                return (v, c) -> {
+                    v.visitTableSwitchInsn(min, max, dflt, table);
+                    return DEC1;
+                };
+            }
+            return (v, c) -> {
+                v.visitLookupSwitchInsn(dflt, k, l);
+                return DEC1;
+            };
+        }
+
         //@formatter:off
         static Manipulate IF_ICMPEQ(Label label) {return (v, c) -> {v.visitJumpInsn(Opcodes.IF_ICMPEQ, label);return DEC2;};}
         static Manipulate IF_ICMPNE(Label label) {return (v, c) -> {v.visitJumpInsn(Opcodes.IF_ICMPNE, label);return DEC2;};}
@@ -429,13 +1483,20 @@ public interface Assembler {
         static Manipulate IFLE(Label label) {return (v, c) -> {v.visitJumpInsn(Opcodes.IFLE, label);return DEC1;};}
         //@formatter:on
         static Object internalName(TypeDescription type) {
-            if (type.isPrimitive()) {
-                if (ByteCodeManipulates.INT_LIKE.isAssignableFrom(type)) return Opcodes.INTEGER;
-                if (ByteCodeManipulates.FLOAT.isAssignableFrom(type)) return Opcodes.FLOAT;
-                if (ByteCodeManipulates.DOUBLE.isAssignableFrom(type)) return Opcodes.DOUBLE;
-                if (ByteCodeManipulates.LONG.isAssignableFrom(type)) return Opcodes.LONG;
+            switch (Category.of(type)) {
+                case Category.INT:
+                    return Opcodes.INTEGER;
+                case Category.FLOAT:
+                    return Opcodes.FLOAT;
+                case Category.DOUBLE:
+                    return Opcodes.DOUBLE;
+                case Category.LONG:
+                    return Opcodes.LONG;
+                case Category.TOP:
+                    return Opcodes.TOP;
+                default:
+                    return type.asErasure().getInternalName();
             }
-            return type.asErasure().getInternalName();
         }
 
         static Object[] toInternalName(List<TypeDescription> types) {
@@ -448,7 +1509,14 @@ public interface Assembler {
             return out;
         }
 
-
+
+        /**
+         * @return should frames be written, false when frame generation is disabled by ByteBuddy (COMPUTE_FRAMES or legacy class file)
+         */
+        static boolean frames(Implementation.Context c) {
+            return c == null || c.getFrameGeneration().isActive();
+        }
+
         /**
          * declare a Label
          *
@@ -467,31 +1535,31 @@ public interface Assembler {
                 case Opcodes.F_FULL:
                     return (v, c) -> {
                         v.visitLabel(label);
-                        v.visitFrame(Opcodes.F_FULL, localSize, localName, stackSize, stackName);
+                        if (frames(c)) v.visitFrame(Opcodes.F_FULL, localSize, localName, stackSize, stackName);
                         return Size.ZERO;
                     };
                 case Opcodes.F_APPEND:
                     return (v, c) -> {
                         v.visitLabel(label);
-                        v.visitFrame(Opcodes.F_APPEND, localSize, localName, 0, null);
+                        if (frames(c)) v.visitFrame(Opcodes.F_APPEND, localSize, localName, 0, null);
                         return Size.ZERO;
                     };
                 case Opcodes.F_SAME:
                     return (v, c) -> {
                         v.visitLabel(label);
-                        v.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+                        if (frames(c)) v.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
                         return Size.ZERO;
                     };
                 case Opcodes.F_SAME1:
                     return (v, c) -> {
                         v.visitLabel(label);
-                        v.visitFrame(Opcodes.F_SAME1, 0, null, 1, stackName);
+                        if (frames(c)) v.visitFrame(Opcodes.F_SAME1, 0, null, 1, stackName);
                         return Size.ZERO;
                     };
                 case Opcodes.F_CHOP:
                     return (v, c) -> {
                         v.visitLabel(label);
-                        v.visitFrame(Opcodes.F_CHOP, localSize, null, 0, null);
+                        if (frames(c)) v.visitFrame(Opcodes.F_CHOP, localSize, null, 0, null);
                         return Size.ZERO;
                     };
                 default:
@@ -520,6 +1588,119 @@ public interface Assembler {
 
         }
 
+        /**
+         * max argument slots of StringConcatFactory
+         */
+        int CONCAT_SLOTS = 200;
+
+        /**
+         * Concat operands on stack to a String. Use invokedynamic of {@code StringConcatFactory.makeConcatWithConstants}
+         * when the class file version is at least Java 9, otherwise a presized StringBuilder,
+         * which spills operands to locals from {@code local}.
+         *
+         * @param operands the operand types, from bottom to top of stack
+         * @param local    the first local index free to use for the StringBuilder fallback
+         */
+        static Manipulate CONCAT(List<TypeDescription> operands, int local) {
+            int n = operands.size();
+            int words = 0, capacity = 0;
+            StringBuilder descriptor = new StringBuilder("(");
+            char[] recipe = new char[n];
+            int[] slots = new int[n];
+            for (int i = 0; i < n; i++) {
+                TypeDescription t = operands.get(i);
+                slots[i] = local + words;
+                words += t.getStackSize().getSize();
+                capacity += estimate(t);
+                descriptor.append(t.getDescriptor());
+                recipe[i] = '\u0001';
+            }
+            descriptor.append(")Ljava/lang/String;");
+            String desc = descriptor.toString();
+            String rec = new String(recipe);
+            int cap = capacity;
+            Size size = new Size(1 - words, Math.max(0, 1 - words));
+            Size built = new Size(1 - words, Math.max(0, 3 - words));
+            boolean fit = words <= CONCAT_SLOTS;
+            return (v, c) -> {
+                if (fit && c != null && c.getClassFileVersion().isAtLeast(ClassFileVersion.JAVA_V9)) {
+                    v.visitInvokeDynamicInsn("makeConcatWithConstants", desc,
+                            new Handle(Opcodes.H_INVOKESTATIC,
+                                    "java/lang/invoke/StringConcatFactory",
+                                    "makeConcatWithConstants",
+                                    "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;",
+                                    false),
+                            rec);
+                    return size;
+                }
+                for (int i = n - 1; i >= 0; i--) MethodVariableAccess.of(operands.get(i)).storeAt(slots[i]).apply(v, c);
+                v.visitTypeInsn(Opcodes.NEW, "java/lang/StringBuilder");
+                v.visitInsn(Opcodes.DUP);
+                IntegerConstant.forValue(cap).apply(v, c);
+                v.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(I)V", false);
+                for (int i = 0; i < n; i++) {
+                    TypeDescription t = operands.get(i);
+                    MethodVariableAccess.of(t).loadFrom(slots[i]).apply(v, c);
+                    v.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(" + appendDescriptor(t) + ")Ljava/lang/StringBuilder;", false);
+                }
+                v.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+                return built;
+            };
+        }
+
+        /**
+         * @return estimated chars of the String of a value
+         */
+        static int estimate(TypeDescription t) {
+            switch (ByteCodeManipulates.LikeType.kind(t)) {
+                //@formatter:off
+                case ByteCodeManipulates.LikeType.K_BOOL: return 5;
+                case ByteCodeManipulates.LikeType.K_CHAR: return 1;
+                case ByteCodeManipulates.LikeType.K_BYTE: return 4;
+                case ByteCodeManipulates.LikeType.K_SHORT: return 6;
+                case ByteCodeManipulates.LikeType.K_INT: return 11;
+                case ByteCodeManipulates.LikeType.K_LONG: return 20;
+                case ByteCodeManipulates.LikeType.K_FLOAT:
+                case ByteCodeManipulates.LikeType.K_DOUBLE: return 24;
+                default: return 16;
+                //@formatter:on
+            }
+        }
+
+        /**
+         * @return the parameter descriptor of the StringBuilder.append overload for a value, same as javac
+         */
+        static String appendDescriptor(TypeDescription t) {
+            switch (ByteCodeManipulates.LikeType.kind(t)) {
+                //@formatter:off
+                case ByteCodeManipulates.LikeType.K_BOOL: return "Z";
+                case ByteCodeManipulates.LikeType.K_CHAR: return "C";
+                case ByteCodeManipulates.LikeType.K_BYTE:
+                case ByteCodeManipulates.LikeType.K_SHORT:
+                case ByteCodeManipulates.LikeType.K_INT: return "I";
+                case ByteCodeManipulates.LikeType.K_LONG: return "J";
+                case ByteCodeManipulates.LikeType.K_FLOAT: return "F";
+                case ByteCodeManipulates.LikeType.K_DOUBLE: return "D";
+                default: return t.represents(String.class) ? "Ljava/lang/String;" : "Ljava/lang/Object;";
+                //@formatter:on
+            }
+        }
+
+        /**
+         * @return size of the invokedynamic which pops closures and pushes the lambda
+         */
+        static Size closureSize(TypeDescription... closures) {
+            int words = 0;
+            for (TypeDescription t : closures) words += t.getStackSize().getSize();
+            return new Size(1 - words, Math.max(1 - words, 0));
+        }
+
+        Handle LAMBDA_METAFACTORY = new Handle(Opcodes.H_INVOKESTATIC,
+                "java/lang/invoke/LambdaMetafactory",
+                "metafactory",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+                false);
+
         /**
          * Bootstrap a lambda target to a Method
          *
@@ -528,39 +1709,7 @@ public interface Assembler {
          * @param closures closure parameters
          */
         static Manipulate LAMBDA(MethodDescription target, TypeDescription face, TypeDescription... closures) {
-            MethodDescription.InDefinedShape delegate = face.getDeclaredMethods().filter(isAbstract()).getOnly();
-            String delegateSignature = delegate.getName();
-            //!! (closure1;closure2)result
-            String delegateDescriptor = (closures.length == 0
-                    ? "()"
-                    : Arrays.stream(closures).map(NamedElement.WithDescriptor::getDescriptor).collect(Collectors.joining(";", "(", ")")))
-                    + delegate.getDeclaringType().getDescriptor();
-            Handle bootstrapHandle = new Handle(Opcodes.H_INVOKESTATIC,
-                    "java/lang/invoke/LambdaMetafactory",
-                    "metafactory",
-                    "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
-                    false);
-            Type functionType = Type.getType(delegate.getDescriptor());
-            Handle targetHandle = new Handle(
-                    handleKindDecider(target, false),
-                    target.getDeclaringType().asErasure().getInternalName(),//owner
-                    target.getName(),//method name
-                    target.getDescriptor(), //descriptor
-                    target.getDeclaringType().isInterface()
-            );
-            Type targetDescriptor = Type.getType(target.getDescriptor());
-            return (mv, c) -> {
-                mv.visitInvokeDynamicInsn(
-                        delegateSignature,//methodName(closures;...)Result
-                        delegateDescriptor,
-                        bootstrapHandle,
-                        //** arguments for bootstrap method
-                        functionType, //arguments for functional interface method
-                        targetHandle, //the target method handle
-                        targetDescriptor //the target method descriptor
-                );
-                return new Size(1, 1);
-            };
+            return Lambda.of(target, face, closures);
         }
 
         /**
@@ -571,39 +1720,342 @@ public interface Assembler {
          * @param closures closure parameters
          */
         static Manipulate LAMBDA(FieldDescription target, TypeDescription face, TypeDescription... closures) {
-            MethodDescription.InDefinedShape delegate = face.getDeclaredMethods().filter(isAbstract()).getOnly();
-            String delegateSignature = delegate.getName();
-            //!! (closure1;closure2)result
-            String delegateDescriptor = (closures.length == 0
-                    ? "()"
-                    : Arrays.stream(closures).map(NamedElement.WithDescriptor::getDescriptor).collect(Collectors.joining(";", "(", ")")))
-                    + delegate.getDeclaringType().getDescriptor();
-            Handle bootstrapHandle = new Handle(Opcodes.H_INVOKESTATIC,
-                    "java/lang/invoke/LambdaMetafactory",
-                    "metafactory",
-                    "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
-                    false);
-            Type functionType = Type.getType(delegate.getDescriptor());
-            Handle targetHandle = new Handle(
-                    handleKindDecider(target, (delegate.getParameters().size() - closures.length) != 0),//setter
-                    target.getDeclaringType().asErasure().getInternalName(),//owner
-                    target.getName(),//method name
-                    target.getDescriptor(), //descriptor
-                    target.getDeclaringType().isInterface()
+            return Lambda.of(target, face, closures);
+        }
+
+        /**
+         * Load a dynamic constant resolved lazily by a bootstrap method, see {@link Dynamic}.
+         *
+         * @param bootstrap static bootstrap method of {@code (Lookup, String, Class)}
+         * @param name      the constant name passed to bootstrap
+         * @param type      the constant type
+         */
+        static Manipulate CONDY(MethodDescription bootstrap, String name, TypeDescription type) {
+            return new Dynamic(bootstrap, name, type);
+        }
+
+        Handle INLINE_CACHE_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC,
+                Type.getInternalName(InlineCache.class),
+                "bootstrap",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+                false);
+
+        /**
+         * invoke a virtual or interface method through an invokedynamic site of {@link InlineCache}
+         *
+         * @param m the instance method
+         */
+        static Manipulate INLINE_CACHE(MethodDescription m) {
+            assert !m.isStatic() && m.isMethod() : "not an instance method " + m;
+            TypeDescription receiver = m.getDeclaringType().asErasure();
+            StringBuilder d = new StringBuilder("(").append(receiver.getDescriptor());
+            int words = receiver.getStackSize().getSize();
+            for (TypeDescription t : m.getParameters().asTypeList().asErasures()) {
+                d.append(t.getDescriptor());
+                words += t.getStackSize().getSize();
+            }
+            String descriptor = d.append(')').append(m.getReturnType().asErasure().getDescriptor()).toString();
+            String name = m.getInternalName();
+            int result = m.getReturnType().getStackSize().getSize();
+            Size size = new Size(result - words, Math.max(0, result - words));
+            return (v, c) -> {
+                v.visitInvokeDynamicInsn(name, descriptor, INLINE_CACHE_BOOTSTRAP);
+                return size;
+            };
+        }
+
+        /**
+         * A CONSTANT_Dynamic loaded by ldc from Java 11. For elder class file versions, the constant is held by a
+         * lazy holder auxiliary type, which calls bootstrap in its static initializer on first access with a lookup of the holder.
+         * So the bootstrap must be accessible from the package of the instrumented type.
+         */
+        final class Dynamic implements Manipulate, AuxiliaryType {
+            static final String VALUE = "value";
+            final MethodDescription bootstrap;
+            final String name;
+            final TypeDescription type;
+            final Size size;
+
+            Dynamic(MethodDescription bootstrap, String name, TypeDescription type) {
+                assert bootstrap.isStatic() && bootstrap.getParameters().asTypeList().asErasures()
+                        .equals(new TypeList.ForLoadedTypes(MethodHandles.Lookup.class, String.class, Class.class))
+                        : "bootstrap method should be static (Lookup, String, Class): " + bootstrap;
+                this.bootstrap = bootstrap;
+                this.name = name;
+                this.type = type;
+                int words = type.getStackSize().getSize();
+                this.size = new Size(words, words);
+            }
+
+            @Override
+            public Size apply(MethodVisitor v, Implementation.Context c) {
+                if (c == null || c.getClassFileVersion().isAtLeast(ClassFileVersion.JAVA_V11)) {
+                    v.visitLdcInsn(new ConstantDynamic(name, type.getDescriptor(), new Handle(
+                            Opcodes.H_INVOKESTATIC,
+                            bootstrap.getDeclaringType().asErasure().getInternalName(),
+                            bootstrap.getInternalName(),
+                            bootstrap.getDescriptor(),
+                            bootstrap.getDeclaringType().isInterface())));
+                } else {
+                    TypeDescription holder = c.register(this);
+                    v.visitFieldInsn(Opcodes.GETSTATIC, holder.getInternalName(), VALUE, type.getDescriptor());
+                }
+                return size;
+            }
+
+            @Override
+            public String getSuffix() {
+                return "condy$" + name;
+            }
+
+            @Override
+            public DynamicType make(String auxiliaryTypeName, ClassFileVersion version, MethodAccessorFactory accessors) {
+                DynamicType.Builder<?> b = new ByteBuddy(version)
+                        .subclass(Object.class, ConstructorStrategy.Default.NO_CONSTRUCTORS)
+                        .name(auxiliaryTypeName)
+                        .modifiers(DEFAULT_TYPE_MODIFIER)
+                        .defineField(VALUE, type, Modifier.PUBLIC | Modifier.STATIC | Modifier.FINAL);
+                FieldDescription value = b.toTypeDescription().getDeclaredFields().getOnly();
+                return b.initializer(new ByteCodeAppender.Simple(
+                                MethodInvocation.invoke(ByteCodeManipulates.LOOKUP),
+                                new TextConstant(name),
+                                ClassConstant.of(type),
+                                MethodInvocation.invoke(bootstrap),
+                                Assigner.DEFAULT.assign(bootstrap.getReturnType(), type.asGenericType(), Assigner.Typing.DYNAMIC),
+                                FieldAccess.forField(value).write()))
+                        .make();
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (this == o) return true;
+                if (!(o instanceof Dynamic)) return false;
+                Dynamic d = (Dynamic) o;
+                return bootstrap.equals(d.bootstrap) && name.equals(d.name) && type.equals(d.type);
+            }
+
+            @Override
+            public int hashCode() {
+                return 31 * (31 * bootstrap.hashCode() + name.hashCode()) + type.hashCode();
+            }
+        }
+
+        /**
+         * A prepared invokedynamic of LambdaMetafactory, only the final visit of instruction remains when apply.
+         * <p>
+         * The instantiated method type is the functional method specialized by the target: primitive
+         * positions of the functional method are kept, reference positions take the target type, boxed if primitive.
+         */
+        final class Lambda implements Manipulate {
+            /**
+             * java.util.function interfaces by shape of {@link #code(TypeDescription, boolean)}, as {@code params>return}
+             */
+            static final Map<String, TypeDescription> FUNCTIONAL = functional(
+                    Runnable.class, ">V", Supplier.class, ">L", IntSupplier.class, ">I", LongSupplier.class, ">J",
+                    DoubleSupplier.class, ">D", BooleanSupplier.class, ">Z",
+                    Consumer.class, "L>V", IntConsumer.class, "I>V", LongConsumer.class, "J>V", DoubleConsumer.class, "D>V",
+                    Function.class, "L>L", IntFunction.class, "I>L", LongFunction.class, "J>L", DoubleFunction.class, "D>L",
+                    ToIntFunction.class, "L>I", ToLongFunction.class, "L>J", ToDoubleFunction.class, "L>D",
+                    IntUnaryOperator.class, "I>I", LongUnaryOperator.class, "J>J", DoubleUnaryOperator.class, "D>D",
+                    IntToLongFunction.class, "I>J", IntToDoubleFunction.class, "I>D", LongToIntFunction.class, "J>I",
+                    LongToDoubleFunction.class, "J>D", DoubleToIntFunction.class, "D>I", DoubleToLongFunction.class, "D>J",
+                    Predicate.class, "L>Z", IntPredicate.class, "I>Z", LongPredicate.class, "J>Z", DoublePredicate.class, "D>Z",
+                    BiConsumer.class, "LL>V", ObjIntConsumer.class, "LI>V", ObjLongConsumer.class, "LJ>V", ObjDoubleConsumer.class, "LD>V",
+                    BiFunction.class, "LL>L", ToIntBiFunction.class, "LL>I", ToLongBiFunction.class, "LL>J",
+                    ToDoubleBiFunction.class, "LL>D", BiPredicate.class, "LL>Z",
+                    IntBinaryOperator.class, "II>I", LongBinaryOperator.class, "JJ>J", DoubleBinaryOperator.class, "DD>D"
             );
-            Type targetDescriptor = Type.getType(target.getDescriptor());
-            return (mv, c) -> {
+            final String name;
+            final String descriptor;
+            final Type function;
+            final Handle target;
+            final Type instantiated;
+            final Size size;
+            /**
+             * the lambda boxes or unboxes some value between functional method and target
+             */
+            final boolean boxing;
+            /**
+             * max interned sites, exceeded at most by the count of threads interning at the same time
+             */
+            static final int LIMIT = 4096;
+            /**
+             * prepared lambda sites, interned by target, functional interface and closure types
+             */
+            private static final ConcurrentMap<Key, Lambda> INTERNED = new ConcurrentHashMap<>();
+
+            Lambda(ByteCodeElement target, TypeDescription face, TypeDescription[] closures) {
+                MethodDescription.InDefinedShape delegate = delegate(face);
+                boolean setter = delegate.getReturnType().represents(void.class);
+                List<TypeDescription> source = parameters(target, setter);
+                TypeList sam = delegate.getParameters().asTypeList().asErasures();
+                if (source.size() - closures.length != sam.size())
+                    throw new IllegalArgumentException("parameters of " + target + " with " + closures.length + " closure(s) not match " + delegate);
+                boolean box = false;
+                Type[] args = new Type[sam.size()];
+                for (int i = 0; i < args.length; i++) {
+                    TypeDescription f = sam.get(i), t = source.get(closures.length + i);
+                    box |= f.isPrimitive() != t.isPrimitive();
+                    args[i] = Type.getType((f.isPrimitive() ? f : t.asBoxed()).getDescriptor());
+                }
+                TypeDescription f = delegate.getReturnType().asErasure(), t = returns(target, setter);
+                if (!f.isPrimitive() && !t.represents(void.class)) {
+                    box |= t.isPrimitive();
+                    f = t.asBoxed();
+                } else box |= !f.represents(void.class) && !t.isPrimitive();
+                StringBuilder d = new StringBuilder("(");
+                for (TypeDescription c : closures) d.append(c.getDescriptor());
+                //!! (closure1closure2)face
+                this.name = delegate.getName();
+                this.descriptor = d.append(')').append(face.getDescriptor()).toString();
+                this.function = Type.getType(delegate.getDescriptor());
+                this.target = new Handle(
+                        handleKindDecider(target, setter),
+                        target.getDeclaringType().asErasure().getInternalName(),//owner
+                        target.getInternalName(),//member name
+                        target.getDescriptor(), //descriptor
+                        target.getDeclaringType().isInterface()
+                );
+                this.instantiated = Type.getMethodType(Type.getType(f.getDescriptor()), args);
+                this.size = closureSize(closures);
+                this.boxing = box;
+            }
+
+            /**
+             * @return the single abstract method of a functional interface
+             */
+            static MethodDescription.InDefinedShape delegate(TypeDescription face) {
+                return face.getDeclaredMethods().filter(isAbstract()).getOnly();
+            }
+
+            /**
+             * @param setter use field as a setter, ignored for methods
+             * @return parameters of the target as method handle, with receiver first for instance members
+             */
+            static List<TypeDescription> parameters(ByteCodeElement target, boolean setter) {
+                List<TypeDescription> r = new ArrayList<>();
+                if (target instanceof MethodDescription) {
+                    MethodDescription m = (MethodDescription) target;
+                    if (!m.isStatic() && !m.isConstructor()) r.add(m.getDeclaringType().asErasure());
+                    r.addAll(m.getParameters().asTypeList().asErasures());
+                } else {
+                    FieldDescription fd = (FieldDescription) target;
+                    if (!fd.isStatic()) r.add(fd.getDeclaringType().asErasure());
+                    if (setter) r.add(fd.getType().asErasure());
+                }
+                return r;
+            }
+
+            /**
+             * @return return type of the target as method handle
+             */
+            static TypeDescription returns(ByteCodeElement target, boolean setter) {
+                if (target instanceof MethodDescription) {
+                    MethodDescription m = (MethodDescription) target;
+                    return m.isConstructor() ? m.getDeclaringType().asErasure() : m.getReturnType().asErasure();
+                }
+                return setter ? TypeDescription.VOID : ((FieldDescription) target).getType().asErasure();
+            }
+
+            /**
+             * @return shape code of a type: I, J, D, Z, V or L for references and primitives only passed by boxing.
+             * narrower primitive results widen to int or double.
+             */
+            static char code(TypeDescription t, boolean result) {
+                switch (ByteCodeManipulates.LikeType.kind(t)) {
+                    //@formatter:off
+                    case ByteCodeManipulates.LikeType.K_INT: return 'I';
+                    case ByteCodeManipulates.LikeType.K_LONG: return 'J';
+                    case ByteCodeManipulates.LikeType.K_DOUBLE: return 'D';
+                    case ByteCodeManipulates.LikeType.K_VOID: return 'V';
+                    case ByteCodeManipulates.LikeType.K_BOOL: return result ? 'Z' : 'L';
+                    case ByteCodeManipulates.LikeType.K_FLOAT: return result ? 'D' : 'L';
+                    case ByteCodeManipulates.LikeType.K_BYTE:
+                    case ByteCodeManipulates.LikeType.K_SHORT:
+                    case ByteCodeManipulates.LikeType.K_CHAR: return result ? 'I' : 'L';
+                    default: return 'L';
+                    //@formatter:on
+                }
+            }
+
+            /**
+             * pick the java.util.function interface for a shape, the most specialized one first,
+             * then with boxed result, boxed parameters, or both.
+             *
+             * @return the functional interface or null if none of its arity
+             */
+            static TypeDescription functional(List<TypeDescription> parameters, TypeDescription result) {
+                StringBuilder p = new StringBuilder();
+                for (TypeDescription t : parameters) p.append(code(t, false));
+                char r = code(result, true);
+                String boxed = p.toString().replaceAll(".", "L");
+                char rb = r == 'V' ? 'V' : 'L';
+                for (String k : new String[]{p + ">" + r, p + ">" + rb, boxed + ">" + r, boxed + ">" + rb}) {
+                    TypeDescription t = FUNCTIONAL.get(k);
+                    if (t != null) return t;
+                }
+                return null;
+            }
+
+            static Map<String, TypeDescription> functional(Object... pairs) {
+                Map<String, TypeDescription> m = new HashMap<>();
+                for (int i = 0; i < pairs.length; i += 2)
+                    m.put((String) pairs[i + 1], TypeDescription.ForLoadedType.of((Class<?>) pairs[i]));
+                return m;
+            }
+
+            /**
+             * @return the interned site, the table is dropped as a whole when it reaches {@link #LIMIT},
+             * as sites are cheap to prepare again and keys would pin the class loaders of described types.
+             */
+            static Lambda of(ByteCodeElement target, TypeDescription face, TypeDescription[] closures) {
+                Key key = new Key(target, face, closures.clone());
+                Lambda l = INTERNED.get(key);
+                if (l != null) return l;
+                if (INTERNED.size() >= LIMIT) INTERNED.clear();
+                return INTERNED.computeIfAbsent(key, k -> new Lambda(k.target, k.face, k.closures));
+            }
+
+            @Override
+            public Size apply(MethodVisitor mv, Implementation.Context c) {
                 mv.visitInvokeDynamicInsn(
-                        delegateSignature,//methodName(closures;...)Result
-                        delegateDescriptor,
-                        bootstrapHandle,
+                        name,//methodName(closures...)face
+                        descriptor,
+                        LAMBDA_METAFACTORY,
                         //** arguments for bootstrap method
-                        functionType, //arguments for functional interface method
-                        targetHandle, //the target method handle
-                        targetDescriptor //the target method descriptor
+                        function, //arguments for functional interface method
+                        target, //the target method handle
+                        instantiated //the target method descriptor
                 );
-                return new Size(1, 1);
-            };
+                return size;
+            }
+
+            static final class Key {
+                final ByteCodeElement target;
+                final TypeDescription face;
+                final TypeDescription[] closures;
+                final int hash;
+
+                Key(ByteCodeElement target, TypeDescription face, TypeDescription[] closures) {
+                    this.target = target;
+                    this.face = face;
+                    this.closures = closures;
+                    this.hash = 31 * (31 * target.hashCode() + face.hashCode()) + Arrays.hashCode(closures);
+                }
+
+                @Override
+                public boolean equals(Object o) {
+                    if (this == o) return true;
+                    if (!(o instanceof Key)) return false;
+                    Key k = (Key) o;
+                    return hash == k.hash && target.equals(k.target) && face.equals(k.face) && Arrays.equals(closures, k.closures);
+                }
+
+                @Override
+                public int hashCode() {
+                    return hash;
+                }
+            }
         }
     }
 
@@ -611,6 +2063,8 @@ public interface Assembler {
     class Manual implements ByteCodeManipulates {
         final Manipulates manipulates = new Manipulates();
         final AtomicInteger local = new AtomicInteger();
+        boolean optimize;
+        int rewrites;
 
         public Manual append(StackManipulation m) {
             manipulates.push(m);
@@ -654,6 +2108,8 @@ public interface Assembler {
 
         public Manual ISHR() {  return append(ShiftRight.INTEGER);}
         public Manual LSHR() {  return append(ShiftRight.LONG);}
+        public Manual IUSHR() {  return append(ShiftRight.INTEGER.toUnsigned());}
+        public Manual LUSHR() {  return append(ShiftRight.LONG.toUnsigned());}
 
         public Manual IOR() {  return append(IOR);}
         public Manual LOR() {  return append(LOR);}
@@ -702,6 +2158,8 @@ public interface Assembler {
 
         public Manual NEWARRAY(TypeDescription.Generic component, StackManipulation... values)
         {return append(ArrayFactory.forType(component).withValues(Arrays.asList(values)));}
+        /** new array of component with the length on stack */
+        public Manual NEWARRAY(TypeDescription component) {return append(Manipulate.NEWARRAY(component));}
 
         public Manual ARRAYLENGTH() {return append(ArrayLength.INSTANCE);}
 
@@ -734,6 +2192,9 @@ public interface Assembler {
 
 
 
+        public Manual GOTO(Label lbl){return append(GOTO.apply(lbl));}
+        /** @see Manipulate#SWITCH(Label, int[], Label[]) */
+        public Manual SWITCH(Label dflt, int[] keys, Label... labels){return append(Manipulate.SWITCH(dflt, keys, labels));}
         public Manual IFEQ(Label lbl){return append(IFEQ.apply(lbl));}
         public Manual IFNE(Label lbl){return append(IFNE.apply(lbl));}
         public Manual IFLT(Label lbl){return append(IFLT.apply(lbl));}
@@ -757,6 +2218,8 @@ public interface Assembler {
         public Manual  LABEL(Label lbl,int type,List<TypeDescription> locals, List<TypeDescription> stack){return append(Manipulate.LABEL(lbl,type,locals,stack));}
         public Manual  LAMBDA(MethodDescription target, TypeDescription face, TypeDescription... closures){return append(Manipulate.LAMBDA(target, face, closures));}
         public Manual  LAMBDA(FieldDescription target, TypeDescription face, TypeDescription... closures){return append(Manipulate.LAMBDA(target, face, closures));}
+        public Manual  CONDY(MethodDescription bootstrap, String name, TypeDescription type){return append(Manipulate.CONDY(bootstrap, name, type));}
+        public Manual  INLINE_CACHE(MethodDescription m){return append(Manipulate.INLINE_CACHE(m));}
 
 
 
@@ -792,10 +2255,38 @@ public interface Assembler {
             return this;
         }
 
+        /**
+         * enable {@link Peephole} optimization when apply
+         */
+        public Manual optimize() {
+            optimize = true;
+            return this;
+        }
+
+        /**
+         * @return count of peephole rewrites applied by last apply
+         */
+        public int rewrites() {
+            return rewrites;
+        }
+
+        /**
+         * the max stack is computed by {@link Flow} over labels and jumps, the max locals is the max of
+         * referenced locals and {@link #adjustLocalSize(int)}.
+         * when optimized, max stack adds the {@link Peephole#extra()} words used by DUP, as an upper bound.
+         */
         @Override
         public Size apply(MethodVisitor v, Implementation.Context c, MethodDescription m) {
-            Size size = Size.ZERO.merge(new Simple(manipulates).apply(v, c, m));
-            return size.merge(new Size(0, local.get() + m.getStackSize()));
+            Peephole p = optimize ? new Peephole(v) : null;
+            Flow flow = new Flow(p == null ? v : p);
+            for (StackManipulation x : manipulates) flow.apply(x, c);
+            int stack = flow.maxStack();
+            if (p != null) {
+                p.flush();
+                rewrites = p.rewrites();
+                stack += p.extra();
+            }
+            return new Size(stack, Math.max(flow.maxLocals(), local.get() + m.getStackSize()));
         }
 
     }
@@ -805,48 +2296,95 @@ public interface Assembler {
      */
     static Manual manual(){return new Manual();}
     class Compute implements ByteCodeManipulates {
-        @Value @AllArgsConstructor
-        static class Frame{
-            int op;
-            List<TypeDescription> locals;
-            List<TypeDescription> stack;
-            Frame pre;
-
+        static final class Frame {
+            final int op;
+            final Slots locals;
+            final Slots stack;
+            final Frame pre;
+            /**
+             * amount of locals appended or chopped
+             */
+            final int delta;
+
+            Frame(int op, Slots locals, Slots stack, Frame pre, int delta) {
+                this.op = op;
+                this.locals = locals;
+                this.stack = stack;
+                this.pre = pre;
+                this.delta = delta;
+            }
 
             public Frame(Compute assembler) {
                 this(Integer.MIN_VALUE,
-                        new ArrayList<>(assembler.locals),
-                        new ArrayList<>(assembler.stack),
-                        assembler.initial);
+                        assembler.locals.snapshot(assembler.pool),
+                        assembler.stack.snapshot(assembler.pool),
+                        assembler.initial, 0);
             }
 
 
             public Frame differ(Frame last) {
                 if (last == null) return this;
-                boolean sameLocal = last.locals.equals(locals);
+                boolean sameLocal = locals.equals(last.locals);
                 boolean sameStack = stack.equals(last.stack);
-                if (sameLocal && sameStack) {
+                if (sameLocal && sameStack && stack.isEmpty()) {
                     //SAME
-                    return new Frame(Opcodes.F_SAME, Collections.emptyList(), Collections.emptyList(), last);
+                    return new Frame(Opcodes.F_SAME, locals, stack, last, 0);
                 }
                 if (stack.isEmpty() && !sameLocal) {
                     int diff = locals.size() - last.locals.size();
                     if (diff > 0 && diff <= 3) {
-                        if (locals.subList(0, locals.size() - diff).equals(last.locals)) {
-                            return new Frame(Opcodes.F_APPEND, locals.subList(locals.size() - diff, locals.size()), Collections.emptyList(), last);
+                        if (locals.prefix(last.locals.size()).equals(last.locals)) {
+                            return new Frame(Opcodes.F_APPEND, locals, stack, last, diff);
                         }
                     } else if (diff >= -3 && diff < 0) {
-                        if (last.locals.subList(0, last.locals.size() - diff).equals(locals)) {
-                            return new Frame(Opcodes.F_CHOP, last.locals.subList(last.locals.size() - diff, last.locals.size()), Collections.emptyList(), last);
+                        if (last.locals.prefix(locals.size()).equals(locals)) {
+                            return new Frame(Opcodes.F_CHOP, locals, stack, last, -diff);
                         }
                     }
                 }
                 if (sameLocal && stack.size() == 1) {
                     //SAME 1
-                    return new Frame(Opcodes.F_SAME1, Collections.emptyList(), stack, last);
+                    return new Frame(Opcodes.F_SAME1, locals, stack, last, 0);
+                }
+                return new Frame(Opcodes.F_FULL, locals, stack, last, 0);
+
+            }
+
+            /**
+             * @return the locals to declare for {@link #op}
+             */
+            public List<TypeDescription> locals() {
+                switch (op) {
+                    case Opcodes.F_APPEND:
+                        return compact(locals.toList(locals.size() - delta));
+                    case Opcodes.F_CHOP:
+                        return compact(pre.locals.toList(pre.locals.size() - delta));
+                    case Opcodes.F_SAME:
+                    case Opcodes.F_SAME1:
+                        return Collections.emptyList();
+                    default:
+                        return compact(locals.toList());
+                }
+            }
+
+            /**
+             * remove the TOP after long and double, which are declared as one element in frames
+             */
+            static List<TypeDescription> compact(List<TypeDescription> locals) {
+                List<TypeDescription> r = null;
+                for (int i = 0; i < locals.size(); i++) {
+                    if (i > 0 && locals.get(i) == TOP && locals.get(i - 1).getStackSize() == StackSize.DOUBLE) {
+                        if (r == null) r = new ArrayList<>(locals.subList(0, i));
+                    } else if (r != null) r.add(locals.get(i));
                 }
-                return new Frame(Opcodes.F_FULL, locals, stack, last);
+                return r == null ? locals : r;
+            }
 
+            /**
+             * @return the stack to declare for {@link #op}
+             */
+            public List<TypeDescription> stack() {
+                return op == Opcodes.F_FULL || op == Opcodes.F_SAME1 ? stack.toList() : Collections.emptyList();
             }
 
             @Override
@@ -854,12 +2392,12 @@ public interface Assembler {
                 if (this == o) return true;
                 if (o == null || getClass() != o.getClass()) return false;
                 Frame frame = (Frame) o;
-                return op == frame.op && Objects.equals(locals, frame.locals) && Objects.equals(stack, frame.stack);
+                return op == frame.op && delta == frame.delta && locals.equals(frame.locals) && stack.equals(frame.stack);
             }
 
             @Override
             public int hashCode() {
-                return Objects.hash(op, locals, stack);
+                return (op * 31 + locals.hashCode()) * 31 + stack.hashCode();
             }
 
             @Override
@@ -885,28 +2423,143 @@ public interface Assembler {
         }
 
 
+        /**
+         * buffered operates, written one by one through {@link Flow}
+         */
+        static final class Segment implements ByteCodeAppender {
+            final List<StackManipulation> operates;
+
+            Segment(List<StackManipulation> operates) {
+                this.operates = operates;
+            }
+
+            @Override
+            public Size apply(MethodVisitor v, Implementation.Context c, MethodDescription m) {
+                return new Simple(operates).apply(v, c, m);
+            }
+        }
+
+        /**
+         * appended ByteCodeAppender with the stack words known after it
+         */
+        static final class Fragment implements ByteCodeAppender {
+            final ByteCodeAppender appender;
+            final int after;
+
+            Fragment(ByteCodeAppender appender, int after) {
+                this.appender = appender;
+                this.after = after;
+            }
+
+            @Override
+            public Size apply(MethodVisitor v, Implementation.Context c, MethodDescription m) {
+                return appender.apply(v, c, m);
+            }
+        }
+
+        /**
+         * max known length of bulk array operations to unroll
+         */
+        static final int BULK_UNROLL = 8;
         final Stack<ByteCodeAppender> manipulates = new Stack<>();
         final Stack<StackManipulation> operates = new Stack<>();
-        final Stack<TypeDescription> locals = new Stack<>();
-        final Stack<TypeDescription> stack = new Stack<>();
+        final TypeStack locals = new TypeStack();
+        final TypeStack stack = new TypeStack();
         final Map<Label, Frame> frame = new HashMap<>();
+        final Slots.Pool pool = new Slots.Pool();
+        final Map<Long, Boolean> assignable = new HashMap<>();
+        final Map<TypeDescription, Members> members = new IdentityHashMap<>();
         final Frame initial;
+        boolean optimize;
+        boolean strict;
+        /**
+         * unreachable after returns, aThrow or goto until next label, operates are dropped.
+         * any declared label ends it, as it may be the target of a later backward jump.
+         */
+        boolean dead;
+        /**
+         * casts elided as the type is already known
+         */
+        int casts;
+        /**
+         * operations folded to constants
+         */
+        int folded;
+        /**
+         * operations dropped as unreachable
+         */
+        int dropped;
+        int rewrites;
+        /**
+         * count of lambdas which box or unbox between functional method and target
+         */
+        int boxing;
+        /**
+         * count of trailing operates which are constants pushed to top of stack
+         */
+        int constants;
+        //!! streaming mode
+        MethodVisitor visitor;
+        Implementation.Context context;
+        Peephole peephole;
+        int depth;
+        int maxStack;
+        int maxLocals;
         private final TypeDescription target;
         private final MethodDescription method;
         private final int offset;
 
         public Compute(TypeDescription target, MethodDescription method) {
+            this(target, method, null);
+        }
+
+        /**
+         * @param index shared members index of target, null to build one when required
+         */
+        public Compute(TypeDescription target, MethodDescription method, Members index) {
             this.target = target;
             this.method = method;
+            if (index != null) {
+                assert target != null && index.type.equals(target.asErasure()) : "members index not of target type";
+                members.put(target, index);
+            }
             if (method != null && !method.isStatic()) locals.push(target);
-            if (method != null) method.getParameters().asTypeList().forEach(x -> locals.push(x.asErasure()));
-            this.offset = (method != null ? (method.isStatic() ? 0 : 1) + (method.getParameters().size()) : 0);
-            initial = new Frame(Integer.MAX_VALUE, new ArrayList<>(locals), Collections.emptyList(), null);
+            if (method != null) method.getParameters().asTypeList().forEach(x -> {
+                locals.push(x.asErasure());
+                if (x.getStackSize() == StackSize.DOUBLE) locals.push(TOP);
+            });
+            this.offset = locals.size();
+            initial = new Frame(Integer.MAX_VALUE, locals.snapshot(pool), Slots.EMPTY, null, 0);
+        }
+
+        /**
+         * check {@code a.isAssignableTo(b)}, primitives by kind and references cached by interned type id
+         */
+        private boolean assignable(TypeDescription a, TypeDescription b) {
+            if (a == b) return true;
+            if (b instanceof LikeType) return b.isAssignableFrom(a);
+            int ka = LikeType.kind(a), kb = LikeType.kind(b);
+            if (ka != 0 || kb != 0) return ka == kb;
+            if (b == TypeDescription.OBJECT) return true;
+            long key = ((long) pool.id(a) << 32) | pool.id(b);
+            Boolean r = assignable.get(key);
+            if (r == null) assignable.put(key, r = a.isAssignableTo(b));
+            return r;
         }
 
-        private static boolean notAssignable(TypeDescription a, TypeDescription b) {
-            // if(a.represents(Object.class)&&b.isAssignableTo(TypeDescription.OBJECT)) return true;
-            return b == INT_LIKE ? !b.isAssignableFrom(a) : !a.isAssignableTo(b);
+        /**
+         * check stack slot at index by its {@link Category} before fallback to type hierarchy
+         */
+        private boolean notAssignable(int index, TypeDescription b) {
+            int tag = stack.tag(index);
+            if (b == LONG) return tag != Category.LONG;
+            if (b == FLOAT) return tag != Category.FLOAT;
+            if (b == DOUBLE) return tag != Category.DOUBLE;
+            if (b == INT_LIKE) return tag != Category.INT;
+            if (b == INT_NUM_LIKE) return tag != Category.INT || !INT_NUM_LIKE.isAssignableFrom(stack.get(index));
+            if (b == TypeDescription.OBJECT) return tag != Category.REF;
+            if (tag != Category.REF && !b.isPrimitive()) return true;
+            return !assignable(stack.get(index), b);
         }
 
         private boolean require(boolean pop, int amount, TypeDescription... types) {
@@ -915,61 +2568,342 @@ public interface Assembler {
             if (types.length == 0) {
                 return true;
             }
-            boolean result = true;
             if (types.length == 1) {
                 for (int i = 0; i < amount; i++) {
-                    if (notAssignable(stack.get(index), types[0])) return false;
+                    if (notAssignable(index, types[0])) return false;
                     index++;
                 }
             } else if (types.length == amount) {
                 for (int i = 0; i < amount; i++) {
-                    if (notAssignable(stack.get(index), types[i])) return false;
+                    if (notAssignable(index, types[i])) return false;
                     index++;
                 }
             }
-            if (pop) stack.removeElement(stack.size() - amount, stack.size());
-            return result;
-
-        }
-
-        private void pushIn(TypeDescription type) {
-            stack.push(type);
-        }
-
-        private TypeDescription popOut() {
-            assert require(false, 1) : "invalid stack size for pop one";
-            return stack.pop();
-        }
+            if (pop) stack.drop(amount);
+            return true;
+
+        }
+
+        private Members members(TypeDescription type) {
+            return members.computeIfAbsent(type, Members::of);
+        }
+
+        private void pushIn(TypeDescription type) {
+            stack.push(type);
+        }
+
+        private TypeDescription popOut() {
+            assert require(false, 1) : "invalid stack size for pop one";
+            return stack.pop();
+        }
+
+        /**
+         * fragments are never dropped as dead code, as they may declare labels
+         */
+        public Compute append(ByteCodeAppender operate) {
+            clearOperates();
+            dead = false;
+            if (visitor != null) write(operate);
+            else manipulates.push(new Fragment(operate, words()));
+            return this;
+        }
+
+        private void append(StackManipulation operate) {
+            if (dead) {
+                dropped++;
+                return;
+            }
+            operates.push(operate);
+            constants = 0;
+            if (visitor != null) clearOperates();
+        }
+
+        private void clearOperates() {
+            constants = 0;
+            if (operates.isEmpty()) return;
+            if (visitor != null) {
+                for (StackManipulation operate : operates) {
+                    StackManipulation.Size size = operate.apply(visitor, context);
+                    maxStack = Math.max(maxStack, depth + size.getMaximalSize());
+                    depth += size.getSizeImpact();
+                }
+            } else manipulates.push(new Segment(new ArrayList<>(operates)));
+            operates.clear();
+        }
+
+        /**
+         * constant is kept in operates until next operate, even in streaming mode, for folding.
+         */
+        private void pushConstant(StackManipulation operate, TypeDescription type, Number value) {
+            int n = constants;
+            pushIn(type);
+            stack.value(stack.size() - 1, value);
+            if (dead) {
+                dropped++;
+                return;
+            }
+            operates.push(operate);
+            constants = n + 1;
+        }
+
+        private void write(ByteCodeAppender operate) {
+            Size size = operate.apply(visitor, context, method);
+            maxStack = Math.max(maxStack, depth + size.getOperandStackSize());
+            maxLocals = Math.max(maxLocals, size.getLocalVariableSize());
+            //!! fragment may change the stack
+            depth = words();
+        }
+
+        /**
+         * @return the words of current stack
+         */
+        private int words() {
+            int words = 0;
+            for (int i = 0; i < stack.size(); i++) words += Category.size(stack.tag(i));
+            return words;
+        }
+
+        /**
+         * Bind to a live MethodVisitor: all operates after are written directly to the visitor, with types and frames
+         * still computed. max stack and locals are computed incrementally, use {@link #finish()} to get them.
+         *
+         * @param v the visitor of current method
+         * @param c the implementation context
+         */
+        public Compute bind(MethodVisitor v, Implementation.Context c) {
+            assert visitor == null : "already bound";
+            clearOperates();
+            assert manipulates.isEmpty() : "already have operates not written";
+            peephole = optimize ? new Peephole(v) : null;
+            visitor = peephole == null ? v : peephole;
+            context = c;
+            return this;
+        }
+
+        /**
+         * write pending operates of a bound Compute
+         *
+         * @return the size of method, max stack adds the {@link Peephole#extra()} words when optimized
+         */
+        public Size finish() {
+            assert visitor != null : "not bound";
+            clearOperates();
+            int stack = maxStack;
+            if (peephole != null) {
+                peephole.flush();
+                rewrites = peephole.rewrites();
+                stack += peephole.extra();
+            }
+            return new Size(stack, Math.max(maxLocals, locals.size()));
+        }
+
+        /**
+         * add a Manual fragment
+         *
+         * @param action the generator consumer current locals and stack returns appending ByteCodeAppender
+         */
+        public Compute manual(BiFunction<Stack<TypeDescription>, Stack<TypeDescription>, ByteCodeAppender> action) {
+            clearOperates();
+            return append(action.apply(locals, stack));
+        }
+
+        //region Mathematical
+        enum Arith {
+            ADD, SUB, MUL, DIV, REM, NEG, SHL, SHR, USHR, OR, XOR, AND;
+
+            boolean bitwise() {
+                return this == SHL || this == SHR || this == USHR || this == OR || this == XOR || this == AND;
+            }
+
+            /**
+             * @return folded value or null if not foldable (division by zero)
+             */
+            Number apply(int category, Number a, Number b) {
+                switch (category) {
+                    case Category.INT: {
+                        int x = a.intValue(), y = b == null ? 0 : b.intValue();
+                        switch (this) {
+                            //@formatter:off
+                            case ADD: return x + y;
+                            case SUB: return x - y;
+                            case MUL: return x * y;
+                            case DIV: return y == 0 ? null : x / y;
+                            case REM: return y == 0 ? null : x % y;
+                            case NEG: return -x;
+                            case SHL: return x << y;
+                            case SHR: return x >> y;
+                            case USHR: return x >>> y;
+                            case OR: return x | y;
+                            case XOR: return x ^ y;
+                            case AND: return x & y;
+                            default: return null;
+                            //@formatter:on
+                        }
+                    }
+                    case Category.LONG: {
+                        long x = a.longValue(), y = b == null ? 0 : b.longValue();
+                        switch (this) {
+                            //@formatter:off
+                            case ADD: return x + y;
+                            case SUB: return x - y;
+                            case MUL: return x * y;
+                            case DIV: return y == 0 ? null : x / y;
+                            case REM: return y == 0 ? null : x % y;
+                            case NEG: return -x;
+                            case SHL: return x << y;
+                            case SHR: return x >> y;
+                            case USHR: return x >>> y;
+                            case OR: return x | y;
+                            case XOR: return x ^ y;
+                            case AND: return x & y;
+                            default: return null;
+                            //@formatter:on
+                        }
+                    }
+                    case Category.FLOAT: {
+                        float x = a.floatValue(), y = b == null ? 0 : b.floatValue();
+                        switch (this) {
+                            //@formatter:off
+                            case ADD: return x + y;
+                            case SUB: return x - y;
+                            case MUL: return x * y;
+                            case DIV: return x / y;
+                            case REM: return x % y;
+                            case NEG: return -x;
+                            default: return null;
+                            //@formatter:on
+                        }
+                    }
+                    case Category.DOUBLE: {
+                        double x = a.doubleValue(), y = b == null ? 0 : b.doubleValue();
+                        switch (this) {
+                            //@formatter:off
+                            case ADD: return x + y;
+                            case SUB: return x - y;
+                            case MUL: return x * y;
+                            case DIV: return x / y;
+                            case REM: return x % y;
+                            case NEG: return -x;
+                            default: return null;
+                            //@formatter:on
+                        }
+                    }
+                    default:
+                        return null;
+                }
+            }
 
-        public Compute append(ByteCodeAppender operate) {
-            manipulates.push(operate);
-            return this;
+            /**
+             * @return is {@code x op b} always x
+             */
+            boolean identity(int category, Number b) {
+                switch (category) {
+                    case Category.INT:
+                    case Category.LONG: {
+                        long y = b.longValue();
+                        switch (this) {
+                            case MUL:
+                            case DIV:
+                                return y == 1;
+                            case ADD:
+                            case SUB:
+                            case SHL:
+                            case SHR:
+                            case USHR:
+                            case OR:
+                            case XOR:
+                                return y == 0;
+                            default:
+                                return false;
+                        }
+                    }
+                    case Category.FLOAT:
+                    case Category.DOUBLE: {
+                        //!! x+0.0 is not x when x is -0.0
+                        double y = b.doubleValue();
+                        return ((this == MUL || this == DIV) && y == 1.0)
+                                || (this == SUB && y == 0.0 && Double.doubleToRawLongBits(y) == 0L);
+                    }
+                    default:
+                        return false;
+                }
+            }
         }
 
-        private void append(StackManipulation operate) {
-            operates.push(operate);
+        private TypeDescription typeOf(int category) {
+            switch (category) {
+                //@formatter:off
+                case Category.INT: return INT;
+                case Category.LONG: return LONG;
+                case Category.FLOAT: return FLOAT;
+                default: return DOUBLE;
+                //@formatter:on
+            }
         }
 
-        private void clearOperates() {
-            if (!operates.isEmpty()) {
-                append(new ByteCodeAppender.Simple(new ArrayList<>(operates)));
-                operates.clear();
-            }
+        private boolean foldable(Arith op, int index, int category) {
+            if (stack.tag(index) != category) return false;
+            if (category == Category.INT) return !op.bitwise() || INT_NUM_LIKE.isAssignableFrom(stack.get(index));
+            return category == Category.LONG || !op.bitwise();
         }
 
         /**
-         * add a Manual fragment
+         * fold constant operands just pushed, or simplify identities like x*1, x+0 and x<<0
          *
-         * @param action the generator consumer current locals and stack returns appending ByteCodeAppender
+         * @return true if folded, nothing more should be emitted
          */
-        public Compute manual(BiFunction<Stack<TypeDescription>, Stack<TypeDescription>, ByteCodeAppender> action) {
-            clearOperates();
-            manipulates.push(action.apply(locals, stack));
-            return this;
+        private boolean fold(Arith op) {
+            int n = stack.size();
+            int arity = op == Arith.NEG ? 1 : 2;
+            if (constants < 1 || n < arity) return false;
+            int category = stack.tag(n - 1);
+            if (category == Category.REF || category == Category.TOP) return false;
+            for (int i = n - arity; i < n; i++) if (!foldable(op, i, category)) return false;
+            Number b = (Number) stack.value(n - 1);
+            if (b == null) return false;
+            if (arity == 1) {
+                Number r = op.apply(category, b, null);
+                if (r == null) return false;
+                operates.drop(1);
+                stack.drop(1);
+                pushConstant(category, r);
+                folded++;
+                return true;
+            }
+            Number a = (Number) stack.value(n - 2);
+            if (a != null && constants >= 2) {
+                Number r = op.apply(category, a, b);
+                if (r == null) return false;
+                operates.drop(2);
+                stack.drop(2);
+                pushConstant(category, r);
+                folded++;
+                return true;
+            }
+            if (op.identity(category, b)) {
+                operates.drop(1);
+                stack.drop(2);
+                pushIn(typeOf(category));
+                constants = 0;
+                folded++;
+                return true;
+            }
+            return false;
+        }
+
+        private void pushConstant(int category, Number value) {
+            switch (category) {
+                //@formatter:off
+                case Category.INT: pushConstant(IntegerConstant.forValue(value.intValue()), INT, value); break;
+                case Category.LONG: pushConstant(LongConstant.forValue(value.longValue()), LONG, value); break;
+                case Category.FLOAT: pushConstant(FloatConstant.forValue(value.floatValue()), FLOAT, value); break;
+                default: pushConstant(DoubleConstant.forValue(value.doubleValue()), DOUBLE, value);
+                //@formatter:on
+            }
         }
 
-        //region Mathematical
         public Compute add() {
+            if (fold(Arith.ADD)) return this;
             if (require(true, 2, INT_LIKE)) {
                 append(Addition.INTEGER);
                 pushIn(INT);
@@ -987,6 +2921,7 @@ public interface Assembler {
         }
 
         public Compute sub() {
+            if (fold(Arith.SUB)) return this;
             if (require(true, 2, INT_LIKE)) {
                 append(Subtraction.INTEGER);
                 pushIn(INT);
@@ -1004,6 +2939,7 @@ public interface Assembler {
         }
 
         public Compute mul() {
+            if (fold(Arith.MUL)) return this;
             if (require(true, 2, INT_LIKE)) {
                 append(Multiplication.INTEGER);
                 pushIn(INT);
@@ -1021,6 +2957,7 @@ public interface Assembler {
         }
 
         public Compute div() {
+            if (fold(Arith.DIV)) return this;
             if (require(true, 2, INT_LIKE)) {
                 append(Division.INTEGER);
                 pushIn(INT);
@@ -1038,6 +2975,7 @@ public interface Assembler {
         }
 
         public Compute rem() {
+            if (fold(Arith.REM)) return this;
             if (require(true, 2, INT_LIKE)) {
                 append(Remainder.INTEGER);
                 pushIn(INT);
@@ -1055,6 +2993,7 @@ public interface Assembler {
         }
 
         public Compute neg() {
+            if (fold(Arith.NEG)) return this;
             if (require(true, 1, INT_NUM_LIKE)) {
                 append(INEG);
                 pushIn(INT);
@@ -1072,6 +3011,7 @@ public interface Assembler {
         }
 
         public Compute shl() {
+            if (fold(Arith.SHL)) return this;
             if (require(true, 2, INT_NUM_LIKE)) {
                 append(ShiftLeft.INTEGER);
                 pushIn(INT);
@@ -1083,6 +3023,7 @@ public interface Assembler {
         }
 
         public Compute shr() {
+            if (fold(Arith.SHR)) return this;
             if (require(true, 2, INT_NUM_LIKE)) {
                 append(ShiftRight.INTEGER);
                 pushIn(INT);
@@ -1093,7 +3034,20 @@ public interface Assembler {
             return this;
         }
 
+        public Compute ushr() {
+            if (fold(Arith.USHR)) return this;
+            if (require(true, 2, INT_NUM_LIKE)) {
+                append(ShiftRight.INTEGER.toUnsigned());
+                pushIn(INT);
+            } else if (require(true, 2, LONG, INT_NUM_LIKE)) {
+                append(ShiftRight.LONG.toUnsigned());
+                pushIn(LONG);
+            } else throw new IllegalArgumentException("top two value on stack not match any unsigned ShiftRight requirement");
+            return this;
+        }
+
         public Compute or() {
+            if (fold(Arith.OR)) return this;
             if (require(true, 2, INT_NUM_LIKE)) {
                 append(IOR);
                 pushIn(INT);
@@ -1105,6 +3059,7 @@ public interface Assembler {
         }
 
         public Compute xor() {
+            if (fold(Arith.XOR)) return this;
             if (require(true, 2, INT_NUM_LIKE)) {
                 append(IXOR);
                 pushIn(INT);
@@ -1116,6 +3071,7 @@ public interface Assembler {
         }
 
         public Compute and() {
+            if (fold(Arith.AND)) return this;
             if (require(true, 2, INT_NUM_LIKE)) {
                 append(IAND);
                 pushIn(INT);
@@ -1193,7 +3149,7 @@ public interface Assembler {
          * @param from from Frame label ;null for backwards jump.
          * @param to   to Frame label
          */
-        public Compute jump(Label from,Label to) {calc(from,to);append(GOTO.apply(to));return this;}
+        public Compute jump(Label from,Label to) {calc(from,to);append(GOTO.apply(to));dead = true;return this;}
         /** @see #jump( Label, Label)  **/ public Compute jz(Label from,Label to) {assert require(false, 1, INT_LIKE) : "stack required one Integer";popOut();calc(from,to);append(IFEQ.apply(to));return this;}
         /** @see #jump( Label, Label)  **/ public Compute jnz(Label from,Label to) {assert require(false, 1, INT_LIKE) : "stack required one Integer";popOut();calc(from,to);append(IFNE.apply(to));return this;}
         /** @see #jump( Label, Label)  **/ public Compute jlez(Label from,Label to) {assert require(false, 1, INT_LIKE) : "stack required one Integer";popOut();calc(from,to);append(IFLE.apply(to));return this;}
@@ -1211,6 +3167,114 @@ public interface Assembler {
         /** @see #jump( Label, Label)  **/ public Compute jen(Label from,Label to) {assert require(false, 1, TypeDescription.OBJECT) : "stack required one Object";popOut();popOut();calc(from,to);append(IFNULL.apply(to));return this;}
         /** @see #jump( Label, Label)  **/ public Compute jnn(Label from,Label to) {assert require(false, 1, TypeDescription.OBJECT) : "stack required one Object";popOut();popOut();calc(from,to);append(IFNONNULL.apply(to));return this;}
         /** @see #jump( Label, Label)  **/ public Compute goTo(Label from,Label to){return jump(from,to);}
+        //@formatter:on
+
+        /**
+         * record a full frame of current state for a target of a multi-way branch,
+         * as targets are declared one after another, a frame differ to the from label is only valid for the first one.
+         */
+        private void branch(Label to) {
+            Frame frm = full();
+            Frame old = frame.get(to);
+            assert old == null || old.locals.equals(frm.locals) && old.stack.equals(frm.stack) : "invalid Frame of branch target: old " + old + " vs " + frm;
+            frame.put(to, frm);
+        }
+
+        /**
+         * switch on the int on stack, default and every case label use a full frame of current state.
+         * TABLESWITCH or LOOKUPSWITCH is chosen by density of keys.
+         *
+         * @param dflt   the default label
+         * @param keys   distinct keys, in any order
+         * @param labels the label of each key
+         */
+        public Compute switchInt(Label dflt, int[] keys, Label... labels) {
+            assert require(false, 1, INT_LIKE) : "stack required one Integer";
+            popOut();
+            Manipulate sw = Manipulate.SWITCH(dflt, keys, labels);
+            branch(dflt);
+            for (Label l : labels) branch(l);
+            append(sw);
+            dead = true;
+            return this;
+        }
+
+        /**
+         * switch on the String on stack, in the shape javac uses: switch on {@code hashCode()}, then {@code equals} on each key of the hash bucket.
+         * default and case labels use a full frame of current state, internal labels chain frames from a full frame of the first one.
+         * a null String throws NullPointerException.
+         *
+         * @param dflt   the default label
+         * @param keys   distinct keys
+         * @param labels the label of each key
+         * @throws IllegalArgumentException if keys are duplicated
+         */
+        public Compute switchString(Label dflt, String[] keys, Label... labels) {
+            assert keys.length == labels.length : "keys and labels length not match";
+            assert require(false, 1, TypeDescription.STRING) : "stack required one String";
+            Set<String> distinct = new HashSet<>();
+            for (String k : keys) if (!distinct.add(k)) throw new IllegalArgumentException("duplicate switch key " + k);
+            TypeDescription str = popOut();
+            branch(dflt);
+            for (Label l : labels) branch(l);
+            if (dead) {
+                dropped++;
+                return this;
+            }
+            pushIn(str);
+            Map<Integer, List<Integer>> buckets = new TreeMap<>();
+            for (int i = 0; i < keys.length; i++) buckets.computeIfAbsent(keys[i].hashCode(), h -> new ArrayList<>(1)).add(i);
+            int[] hashes = new int[buckets.size()];
+            Label[] bucket = new Label[hashes.length];
+            Label[] hit = new Label[keys.length];
+            Label miss = new Label();
+            int n = 0;
+            for (Integer h : buckets.keySet()) {
+                hashes[n] = h;
+                bucket[n++] = new Label();
+            }
+            append(Duplication.SINGLE);
+            append(MethodInvocation.invoke(STRING_HASH_CODE));
+            append(Manipulate.SWITCH(miss, hashes, bucket));
+            //!! no frame written before could be trusted, the first internal label is full
+            Frame last = null;
+            n = 0;
+            for (List<Integer> ks : buckets.values()) {
+                last = internal(bucket[n++], last);
+                for (int k : ks) {
+                    hit[k] = new Label();
+                    append(Duplication.SINGLE);
+                    append(new TextConstant(keys[k]));
+                    append(MethodInvocation.invoke(STRING_EQUALS));
+                    append(IFNE.apply(hit[k]));
+                }
+                append(GOTO.apply(miss));
+            }
+            for (int k = 0; k < keys.length; k++) {
+                last = internal(hit[k], last);
+                append(Removal.SINGLE);
+                append(GOTO.apply(labels[k]));
+            }
+            internal(miss, last);
+            append(Removal.SINGLE);
+            append(GOTO.apply(dflt));
+            popOut();
+            dead = true;
+            return this;
+        }
+
+        /**
+         * declare a label only reached inside a construct, with frame of current state differ to last frame written,
+         * or a full frame if last is null
+         */
+        private Frame internal(Label label, Frame last) {
+            Frame frm = last == null ? full() : new Frame(this).differ(last);
+            dead = false;
+            append(Manipulate.LABEL(label, frm.op, frm.locals(), frm.stack()));
+            return frm;
+        }
+
+        //@formatter:off
         /** @see #jump( Label, Label)  **/ public Compute ifEQ(Label from,Label to){return jz(from,to);}
         /** @see #jump( Label, Label)  **/ public Compute ifNE(Label from,Label to){return jnz(from,to);}
         /** @see #jump( Label, Label)  **/ public Compute ifLE(Label from,Label to){return jlez(from,to);}
@@ -1244,6 +3308,7 @@ public interface Assembler {
          */
         public Compute labelManual(Label label, int frameType, List<TypeDescription> local, List<TypeDescription> stack) {
             assert frameType >= 0 : "invalid frame type " + frameType;
+            dead = false;
             append(Manipulate.LABEL(label, frameType, local, stack));
             return this;
         }
@@ -1255,7 +3320,8 @@ public interface Assembler {
          */
         public Compute labelComputeInit(Label label) {
             Frame frm = calc(label);
-            append(Manipulate.LABEL(label, frm.op, frm.locals, frm.stack));
+            dead = false;
+            append(Manipulate.LABEL(label, frm.op, frm.locals(), frm.stack()));
             return this;
         }
 
@@ -1267,7 +3333,8 @@ public interface Assembler {
          */
         public Compute labelCompute(Label from, Label label) {
             Frame frm = calc(from, label);
-            append(Manipulate.LABEL(label, frm.op, frm.locals, frm.stack));
+            dead = false;
+            append(Manipulate.LABEL(label, frm.op, frm.locals(), frm.stack()));
             return this;
         }
 
@@ -1279,12 +3346,108 @@ public interface Assembler {
         public Compute label(Label lbl) {
             Frame frm = frame.remove(lbl);
             assert frm != null : "empty frame for label";
-            append(Manipulate.LABEL(lbl, frm.op, frm.locals, frm.stack));
+            dead = false;
+            append(Manipulate.LABEL(lbl, frm.op, frm.locals(), frm.stack()));
             return this;
         }
 
         //endregion
 
+        //region Loop
+
+        /**
+         * @return a full frame of current state, valid whatever frame written before
+         */
+        private Frame full() {
+            return new Frame(Opcodes.F_FULL, locals.snapshot(pool), stack.snapshot(pool), initial, 0);
+        }
+
+        private void full(Label label, Frame frm) {
+            dead = false;
+            append(Manipulate.LABEL(label, Opcodes.F_FULL, frm.locals(), frm.stack()));
+        }
+
+        /**
+         * end a loop body: locals declared in body are dropped, as they are not assigned on every path to loop labels
+         */
+        private void scope(Frame head) {
+            assert stack.snapshot(pool).equals(head.stack) : "loop body should keep the stack, current " + stack + " vs " + head.stack.toList();
+            release(head.locals.size());
+        }
+
+        /**
+         * Counted loop {@code for (int i = start; i < end; i++) body}, with start and end on stack.
+         * The induction variable and end are stored as new locals, the test is placed after the body as the only back edge,
+         * and every loop label uses a full frame of the loop entry.
+         * When unroll is greater than 1, the body is emitted unroll times per iteration while {@code i < end - (unroll - 1)},
+         * the remainder is done by a plain counted loop.
+         *
+         * @param loop   a label not declared, which holds the frame of loop labels as from label of following frames; nullable
+         * @param unroll the unroll factor, 1 for not unroll
+         * @param body   the body generator accept this and the local offset of induction variable for {@link #loadLocal(int)}
+         */
+        public Compute forRange(Label loop, int unroll, ObjIntConsumer<Compute> body) {
+            assert unroll >= 1 : "invalid unroll factor " + unroll;
+            assert require(false, 2, INT_NUM_LIKE) : "stack required start and end Integer";
+            storeLocal();
+            int n = last();
+            storeLocal();
+            int i = last();
+            if (unroll > 1) {
+                //!! limit = max(end, MIN + unroll - 1) - (unroll - 1) never overflow
+                loadLocal(n).constant(Integer.MIN_VALUE + unroll - 1).invoke(MATH_MAX).constant(unroll - 1).sub().storeLocal();
+            }
+            Frame head = full();
+            if (loop != null) frame.put(loop, head);
+            if (unroll > 1) counted(head, i, last(), unroll, body);
+            counted(head, i, n, 1, body);
+            return this;
+        }
+
+        private void counted(Frame head, int i, int n, int times, ObjIntConsumer<Compute> body) {
+            Label start = new Label(), check = new Label();
+            append(GOTO.apply(check));
+            dead = true;
+            full(start, head);
+            for (int k = 0; k < times; k++) {
+                body.accept(this, i);
+                scope(head);
+                append(Manipulate.IINC(i + offset, 1));
+            }
+            full(check, head);
+            loadLocal(i).loadLocal(n);
+            popOut();
+            popOut();
+            append(IF_ICMPLT.apply(start));
+        }
+
+        /**
+         * Loop {@code while (cond) body}, the condition is placed after the body as the only back edge,
+         * and every loop label uses a full frame of the loop entry.
+         *
+         * @param loop a label not declared, which holds the frame of loop labels as from label of following frames; nullable
+         * @param cond the condition generator, which should push one Integer (boolean)
+         * @param body the body generator
+         */
+        public Compute whileLoop(Label loop, Consumer<Compute> cond, Consumer<Compute> body) {
+            Frame head = full();
+            if (loop != null) frame.put(loop, head);
+            Label start = new Label(), check = new Label();
+            append(GOTO.apply(check));
+            dead = true;
+            full(start, head);
+            body.accept(this);
+            scope(head);
+            full(check, head);
+            cond.accept(this);
+            assert require(false, 1, INT_LIKE) : "condition required one Integer";
+            popOut();
+            scope(head);
+            append(IFNE.apply(start));
+            return this;
+        }
+
+        //endregion
         //region Locals and Stack
         public Compute swap() {
             assert require(false, 2) : "empty stack for swap";
@@ -1332,20 +3495,20 @@ public interface Assembler {
         public Compute loadLocal(int vi) {
             int x = vi + offset;
             assert x < locals.size() : "invalid local as offset " + vi;
-            assert locals.get(x) != TOP : "invalid local as offset " + vi + " which is part of DOUBLE size value";
+            assert locals.tag(x) != Category.TOP : "invalid local as offset " + vi + " which is part of DOUBLE size value";
             append(MethodVariableAccess.of(locals.get(x)).loadFrom(x));
             pushIn(locals.get(x));
             return this;
         }
 
         public Compute storeLocal() {
+            int tag = stack.peekTag(0);
             TypeDescription type = popOut();
-            if (type.getStackSize().getSize() == 2) {
-                locals.push(TOP);
-            }
             locals.push(type);
             append(MethodVariableAccess.of(type).storeAt(locals.size() - 1));
-
+            if (Category.size(tag) == 2) {
+                locals.push(TOP);
+            }
             return this;
         }
 
@@ -1355,7 +3518,7 @@ public interface Assembler {
             TypeDescription type = popOut();
             {
                 TypeDescription local = locals.get(x);
-                assert type.isAssignableTo(local) : "incompatible local variable type: " + type + " and " + local;
+                assert assignable(type, local) : "incompatible local variable type: " + type + " and " + local;
             }
             append(MethodVariableAccess.of(type).storeAt(x));
             return this;
@@ -1374,7 +3537,7 @@ public interface Assembler {
 
         public Compute readField(String name) {
             assert target != null : "no target type";
-            FieldDescription.InDefinedShape field = target.getDeclaredFields().filter(named(name)).getOnly();
+            FieldDescription.InDefinedShape field = members(target).field(name);
             assert (field.isStatic() && (method == null || method.isStatic())) || (method != null && !method.isStatic()) : "invalid access field ";
             if (!field.isStatic()) {
                 assert require(false, 1, target) : "require target on stack";
@@ -1408,7 +3571,7 @@ public interface Assembler {
 
         public Compute writeField(String name) {
             assert target != null : "no target type";
-            FieldDescription.InDefinedShape field = target.getDeclaredFields().filter(named(name)).getOnly();
+            FieldDescription.InDefinedShape field = members(target).field(name);
             assert (field.isStatic() && (method == null || method.isStatic())) || (method != null && !method.isStatic()) : "invalid access field ";
             assert require(false, 1, field.getType().asErasure()) : "require value with match type on stack";
             popOut();//value
@@ -1431,8 +3594,25 @@ public interface Assembler {
         public Compute cast(TypeDescription type, boolean... unsafe) {
             assert require(false, 1) : "cast on empty stack";
             TypeDescription t = popOut();
-            assert unsafe.length != 0 || t.isAssignableTo(type) : "cast unsafe";
-            append(TypeCasting.to(type));
+            if (optimize && assignable(t, type)) casts++;
+            else {
+                assert unsafe.length != 0 || assignable(t, type) : "cast unsafe";
+                append(TypeCasting.to(type));
+            }
+            pushIn(type);
+            return this;
+        }
+
+        /**
+         * primitive conversion of top of stack
+         *
+         * @see Manipulate#CONVERT(TypeDescription, TypeDescription)
+         */
+        public Compute convert(TypeDescription type) {
+            assert require(false, 1) : "convert on empty stack";
+            TypeDescription t = popOut();
+            assert t.isPrimitive() && type.isPrimitive() : "none primitive type for convert";
+            if (!t.equals(type)) append(Manipulate.CONVERT(t, type));
             pushIn(type);
             return this;
         }
@@ -1497,7 +3677,7 @@ public interface Assembler {
             assert INT_NUM_LIKE.isAssignableTo(idx) : "invalid index type " + idx;
             assert ar.isArray() : "invalid array type " + ar;
             assert Objects.requireNonNull(ar.getComponentType()).isAssignableFrom(val) : "invalid value type " + val;
-            append(ArrayAccess.of(ar).store());
+            append(ArrayAccess.of(ar.getComponentType()).store());
             return this;
         }
 
@@ -1507,7 +3687,7 @@ public interface Assembler {
             TypeDescription ar = popOut();
             assert INT_NUM_LIKE.isAssignableTo(idx) : "invalid index type " + idx;
             assert ar.isArray() : "invalid array type " + ar;
-            append(ArrayAccess.of(ar).load());
+            append(ArrayAccess.of(ar.getComponentType()).load());
             pushIn(ar.getComponentType());
             return this;
         }
@@ -1517,7 +3697,149 @@ public interface Assembler {
             TypeDescription ar = popOut();
             assert ar.isArray() : "invalid array type " + ar;
             append(ArrayLength.INSTANCE);
-            pushIn(ar.getComponentType());
+            pushIn(INT);
+            return this;
+        }
+
+        /**
+         * @return the local offset of last declared local, for {@link #loadLocal(int)}
+         */
+        private int last() {
+            int x = locals.size() - 1;
+            if (locals.tag(x) == Category.TOP) x--;
+            return x - offset;
+        }
+
+        /**
+         * drop temporary locals declared after mark
+         */
+        private void release(int mark) {
+            maxLocals = Math.max(maxLocals, locals.size());
+            if (locals.size() > mark) locals.drop(locals.size() - mark);
+        }
+
+        private boolean copyable(TypeDescription src, TypeDescription dest) {
+            if (!src.isArray() || !dest.isArray()) return false;
+            TypeDescription s = src.getComponentType(), d = dest.getComponentType();
+            return s.isPrimitive() || d.isPrimitive() ? s.equals(d) : assignable(s, d);
+        }
+
+        /**
+         * {@link System#arraycopy} with stack of src, srcPos, dest, destPos, length
+         */
+        public Compute arrayCopy() {
+            assert require(false, 5) : "operand not 5 for array copy";
+            assert copyable(stack.peek(4), stack.peek(2)) : "incompatible arrays to copy from " + stack.peek(4) + " to " + stack.peek(2);
+            return invoke(ARRAY_COPY);
+        }
+
+        /**
+         * {@link System#arraycopy} with stack of src, srcPos, dest, destPos and a known length.
+         * small length is unrolled by reading all elements to temporary locals before writing, as overlapped copy is same as arraycopy.
+         * unlike arraycopy, an unrolled copy may partially write dest before out of bounds, and does not check null for length 0.
+         */
+        public Compute arrayCopy(int length) {
+            assert length >= 0 : "invalid length " + length;
+            if (length > BULK_UNROLL) return constant(length).arrayCopy();
+            assert require(false, 4) : "operand not 4 for array copy";
+            assert copyable(stack.peek(3), stack.peek(1)) : "incompatible arrays to copy from " + stack.peek(3) + " to " + stack.peek(1);
+            int mark = locals.size();
+            storeLocal();
+            int dp = last();
+            storeLocal();
+            int d = last();
+            storeLocal();
+            int sp = last();
+            storeLocal();
+            int s = last();
+            int[] tmp = new int[length];
+            for (int j = 0; j < length; j++) {
+                loadLocal(s).loadLocal(sp).constant(j).add().arrayGet().storeLocal();
+                tmp[j] = last();
+            }
+            for (int j = 0; j < length; j++) {
+                loadLocal(d).loadLocal(dp).constant(j).add().loadLocal(tmp[j]).arraySet();
+            }
+            release(mark);
+            return this;
+        }
+
+        private MethodDescription fill(TypeDescription array, boolean range) {
+            TypeDescription c = array.getComponentType().isPrimitive() ? array.getComponentType() : TypeDescription.OBJECT;
+            TypeDescription ar = TypeDescription.ArrayProjection.of(c);
+            return TypeDescription.ForLoadedType.of(Arrays.class).getDeclaredMethods()
+                    .filter(named("fill").and(range ? takesArguments(ar, INT, INT, c) : takesArguments(ar, c))).getOnly();
+        }
+
+        /**
+         * {@link Arrays#fill} with stack of array, value
+         */
+        public Compute arrayFill() {
+            assert require(false, 2) : "operand not 2 for array fill";
+            assert stack.peek(1).isArray() : "invalid array type " + stack.peek(1);
+            return invoke(fill(stack.peek(1), false));
+        }
+
+        /**
+         * fill the first length elements with stack of array, value. small length is unrolled, otherwise use {@link Arrays#fill} of range.
+         */
+        public Compute arrayFill(int length) {
+            assert length >= 0 : "invalid length " + length;
+            assert require(false, 2) : "operand not 2 for array fill";
+            TypeDescription ar = stack.peek(1);
+            assert ar.isArray() : "invalid array type " + ar;
+            int mark = locals.size();
+            storeLocal();
+            int v = last();
+            if (length > BULK_UNROLL) {
+                constant(0).constant(length).loadLocal(v).invoke(fill(ar, true));
+            } else {
+                storeLocal();
+                int a = last();
+                for (int j = 0; j < length; j++) loadLocal(a).constant(j).loadLocal(v).arraySet();
+            }
+            release(mark);
+            return this;
+        }
+
+        /**
+         * clone the array on stack
+         */
+        public Compute arrayClone() {
+            assert require(false, 1) : "operand lesser than 1 for array clone";
+            TypeDescription ar = popOut();
+            assert ar.isArray() : "invalid array type " + ar;
+            append(MethodInvocation.invoke(OBJECT_CLONE).virtual(ar));
+            append(TypeCasting.to(ar));
+            pushIn(ar);
+            return this;
+        }
+
+        //endregion
+        //region String
+
+        /**
+         * concat top n values on stack to a String, by invokedynamic of StringConcatFactory from Java 9,
+         * or by a presized StringBuilder for elder class file versions.
+         *
+         * @param n count of operands
+         */
+        public Compute concat(int n) {
+            assert n > 0 && require(false, n) : "operand lesser than " + n + " for concat";
+            List<TypeDescription> operands = new ArrayList<>(n);
+            for (int i = n - 1; i >= 0; i--) {
+                TypeDescription t = stack.peek(i);
+                operands.add(t instanceof HolderType ? TypeDescription.OBJECT : t);
+            }
+            int mark = locals.size();
+            for (TypeDescription t : operands) {
+                locals.push(t);
+                if (t.getStackSize() == StackSize.DOUBLE) locals.push(TOP);
+            }
+            stack.drop(n);
+            append(Manipulate.CONCAT(operands, mark));
+            release(mark);
+            pushIn(TypeDescription.STRING);
             return this;
         }
 
@@ -1526,6 +3848,7 @@ public interface Assembler {
         public Compute aThrow() {
             assert require(false, 1, TypeDescription.THROWABLE) : "invalid stack to aThrow";
             append(ATHROW);
+            dead = true;
             return this;
         }
 
@@ -1533,12 +3856,14 @@ public interface Assembler {
             assert method != null : "not method";
             if (method.getReturnType().asErasure().isAssignableTo(void.class)) {
                 append(MethodReturn.VOID);
+                dead = true;
                 return this;
             }
             assert require(false, 1) : "not value to return";
             TypeDescription t = popOut();
-            assert t.isAssignableTo(method.getReturnType().asErasure()) : "invalid return type " + t;
+            assert assignable(t, method.getReturnType().asErasure()) : "invalid return type " + t;
             append(MethodReturn.of(t));
+            dead = true;
             return this;
         }
 
@@ -1558,43 +3883,72 @@ public interface Assembler {
             return this;
         }
 
+        /**
+         * load a constant resolved lazily on first use by a bootstrap method, instead of computing it in static initializer.
+         *
+         * @param bootstrap static bootstrap method of {@code (Lookup, String, Class)}
+         * @see Manipulate.Dynamic
+         */
+        public Compute constDynamic(MethodDescription bootstrap, String name, TypeDescription type) {
+            append(Manipulate.CONDY(bootstrap, name, type));
+            pushIn(type);
+            return this;
+        }
+
         //@formatter:off
         public Compute defaultValue(TypeDescription type) {append(DefaultValue.of(type));pushIn(type);return this;}
-        public Compute constant(int val) {append(IntegerConstant.forValue(val));pushIn(INT);return this;}
-        public Compute constant(char val) {append(IntegerConstant.forValue(val));pushIn(CHAR);return this;}
-        public Compute constant(byte val) {append(IntegerConstant.forValue(val));pushIn(BYTE);return this;}
-        public Compute constant(short val) {append(IntegerConstant.forValue(val));pushIn(SHORT);return this;}
-        public Compute constant(boolean val) {append(IntegerConstant.forValue(val));pushIn(BOOL);return this;}
-        public Compute constant(long val) {append(LongConstant.forValue(val));pushIn(LONG);return this;}
-        public Compute constant(float val) {append(FloatConstant.forValue(val));pushIn(FLOAT);return this;}
-        public Compute constant(double val) {append(DoubleConstant.forValue(val));pushIn(DOUBLE);return this;}
+        public Compute constant(int val) {pushConstant(IntegerConstant.forValue(val),INT,val);return this;}
+        public Compute constant(char val) {pushConstant(IntegerConstant.forValue(val),CHAR,(int) val);return this;}
+        public Compute constant(byte val) {pushConstant(IntegerConstant.forValue(val),BYTE,(int) val);return this;}
+        public Compute constant(short val) {pushConstant(IntegerConstant.forValue(val),SHORT,(int) val);return this;}
+        public Compute constant(boolean val) {pushConstant(IntegerConstant.forValue(val),BOOL,val ? 1 : 0);return this;}
+        public Compute constant(long val) {pushConstant(LongConstant.forValue(val),LONG,val);return this;}
+        public Compute constant(float val) {pushConstant(FloatConstant.forValue(val),FLOAT,val);return this;}
+        public Compute constant(double val) {pushConstant(DoubleConstant.forValue(val),DOUBLE,val);return this;}
         //@formatter:on
 
         //endregion
         //region Invocation
         public Compute invoke(MethodDescription m) {
             checkMethodParameters(m);
-            TypeDefinition t = m.getDeclaringType();
-            if (!m.isStatic() && m.isMethod()) {
+            TypeDescription t = m.getDeclaringType().asErasure();
+            if (!m.isStatic()) {
                 assert require(false, 1, m.getDeclaringType().asErasure()) : "instance type not match";
                 t = popOut();
             }
-            if (!m.isMethod() || m.isAbstract())
+            if (!m.isMethod())
                 append(MethodInvocation.invoke(m).special(m.getDeclaringType().asErasure()));
-            else if (t.getDeclaredMethods().filter(x -> x.asTypeToken().equals(m.asTypeToken())).size() < 1)
+            else if (m.isAbstract() || !members(t).declares(m))
                 append(MethodInvocation.invoke(m).virtual(m.getDeclaringType().asErasure()));
             else append(MethodInvocation.invoke(m));
             if (!m.getReturnType().asErasure().represents(void.class)) pushIn(m.getReturnType().asErasure());
             return this;
         }
 
+        /**
+         * invoke an instance method through an inline cache call site, which links direct handles
+         * of at most {@link InlineCache#LIMIT} receiver classes, for megamorphic interface call sites.
+         *
+         * @param m method to invoke
+         * @see InlineCache
+         */
+        public Compute invokeCached(MethodDescription m) {
+            assert !m.isStatic() && m.isMethod() : "not an instance method " + m;
+            checkMethodParameters(m);
+            assert require(false, 1, m.getDeclaringType().asErasure()) : "instance type not match";
+            popOut();
+            append(Manipulate.INLINE_CACHE(m));
+            if (!m.getReturnType().asErasure().represents(void.class)) pushIn(m.getReturnType().asErasure());
+            return this;
+        }
+
         private void checkMethodParameters(MethodDescription m) {
             int n = m.getParameters().size();
             if (n > 0) {
                 assert require(false, n) : "required parameter " + n;
                 for (int i = n - 1; i >= 0; i--) {
                     TypeDescription t = popOut();
-                    assert t.isAssignableTo(m.getParameters().get(i).getType().asErasure()) : "parameter type not match at " + i;
+                    assert assignable(t, m.getParameters().get(i).getType().asErasure()) : "parameter type not match at " + i;
                 }
             }
         }
@@ -1607,7 +3961,7 @@ public interface Assembler {
          */
         public Compute invoke(MethodDescription m, TypeDescription target) {
             checkMethodParameters(m);
-            if (!m.isStatic() && m.isMethod()) {
+            if (!m.isStatic()) {
                 assert require(false, 1, target) : "instance type not match";
                 popOut();
             }
@@ -1620,67 +3974,144 @@ public interface Assembler {
 
         //endregion
         //region Lambda
-        //todo replace with InvokeDynamic ?
+        /**
+         * lambda of a method to a functional interface, leading parameters (include receiver of instance method)
+         * not in functional method are bound from stack as closures.
+         */
         public Compute lambda(MethodDescription method, TypeDescription face) {
-            MethodDescription.InDefinedShape delegate = face.getDeclaredMethods().filter(isAbstract()).getOnly();
-            //MethodInvocation.invoke(delegate).dynamic(method.getName(),method.getReturnType().asErasure(),Arrays.asList(method.getDeclaringType().asErasure()),null);
-            ParameterList<ParameterDescription.InDefinedShape> target = delegate.getParameters();
-            ParameterList<?> source = method.getParameters();
-            if (target.size() == source.size()) { //!! same parameters
-                if (method.isStatic()) {
-                    //!! static method reference
-                    append(Manipulate.LAMBDA(method, face));
-                } else {
-                    //!! instance method reference
-                    assert require(false, 1) : "absent instance on stack";
-                    TypeDescription t = popOut();
-                    assert t.isAssignableTo(method.getDeclaringType().asErasure()) : "invalid type for instance";
-                    append(Manipulate.LAMBDA(method, face, t));
-                }
-            } else {
-                //closure size
-                int clo = source.size() - target.size() + (method.isStatic() ? 0 : 1);
-                TypeDescription[] closure = new TypeDescription[clo];
-                TypeList types = target.asTypeList().asErasures();
-                assert require(false, clo) : "absent closure parameters";
-                for (int i = 0; i < clo; i++) {
-                    closure[i] = popOut();
-                    assert closure[i].isAssignableTo(types.get(i)) : "invalid type for closure: index " + i;
-                }
-                append(Manipulate.LAMBDA(method, face, closure));
-            }
-            pushIn(face);
-            return this;
+            List<TypeDescription> source = Manipulate.Lambda.parameters(method, false);
+            return bind(method, face, source, source.size() - Manipulate.Lambda.delegate(face).getParameters().size());
+        }
 
+        /**
+         * lambda of a method to the most specialized functional interface of java.util.function,
+         * avoid boxing for int, long, double and boolean when possible.
+         *
+         * @param closures count of leading parameters (include receiver of instance method) bound from stack
+         * @see #boxing()
+         */
+        public Compute lambda(MethodDescription method, int closures) {
+            List<TypeDescription> source = Manipulate.Lambda.parameters(method, false);
+            TypeDescription face = Manipulate.Lambda.functional(source.subList(closures, source.size()), Manipulate.Lambda.returns(method, false));
+            if (face == null) throw new IllegalArgumentException("no functional interface for " + method + " with " + closures + " closure(s)");
+            return bind(method, face, source, closures);
         }
 
+        /**
+         * lambda of a field to a functional interface, a setter if functional method returns void.
+         * receiver of instance field is bound from stack if not in functional method.
+         */
         public Compute lambda(FieldDescription field, TypeDescription face) {
-            MethodDescription.InDefinedShape delegate = face.getDeclaredMethods().filter(isAbstract()).getOnly();
-            ParameterList<ParameterDescription.InDefinedShape> target = delegate.getParameters();
-            TypeDescription.Generic source = field.getType();
-            assert target.size() == 1 : "functional parameter not match for field";
-            if (!field.isStatic()) {
-                assert require(false, 1) : "absent instance on stack";
-                TypeDescription t = popOut();
-                assert t.isAssignableTo(field.getDeclaringType().asErasure()) : "invalid type for instance";
-                append(Manipulate.LAMBDA(field, face, t));
-            } else {
-                append(Manipulate.LAMBDA(field, face));
+            MethodDescription.InDefinedShape delegate = Manipulate.Lambda.delegate(face);
+            List<TypeDescription> source = Manipulate.Lambda.parameters(field, delegate.getReturnType().represents(void.class));
+            return bind(field, face, source, source.size() - delegate.getParameters().size());
+        }
+
+        private Compute bind(ByteCodeElement target, TypeDescription face, List<TypeDescription> source, int closures) {
+            assert closures >= 0 && require(false, closures) : "absent closure parameters";
+            TypeDescription[] closure = new TypeDescription[closures];
+            for (int i = closures - 1; i >= 0; i--) {
+                closure[i] = popOut();
+                assert assignable(closure[i], source.get(i)) : "invalid type for closure: index " + i;
             }
+            Manipulate.Lambda lambda = Manipulate.Lambda.of(target, face, closure);
+            if (lambda.boxing) boxing++;
+            append(lambda);
             pushIn(face);
             return this;
         }
         //endregion
 
+        /**
+         * enable optimization: casts to an already known type are elided, and {@link Peephole} is used when apply.
+         * should be called before any operation.
+         */
+        public Compute optimize() {
+            optimize = true;
+            if (visitor != null && peephole == null) {
+                clearOperates();
+                peephole = new Peephole(visitor);
+                visitor = peephole;
+            }
+            return this;
+        }
+
+        /**
+         * @return is current location reachable, false after returns, aThrow or goto until next label
+         */
+        public boolean reachable() {
+            return !dead;
+        }
+
+        /**
+         * @return count of generated lambdas which could not avoid boxing
+         */
+        public int boxing() {
+            return boxing;
+        }
+
+        /**
+         * @return count of rewrites applied, the elided casts and the peephole rewrites of last apply
+         */
+        public int rewrites() {
+            return casts + rewrites;
+        }
+
+        /**
+         * @return count of operations folded to constants
+         */
+        public int folds() {
+            return folded;
+        }
+
+        /**
+         * @return count of unreachable operations dropped
+         */
+        public int dropped() {
+            return dropped;
+        }
+
+        /**
+         * enable frames-complete mode: {@link #apply} checks that every branch target and every label after an
+         * unconditional transfer carries a frame, and throws {@link IllegalStateException} if not.
+         * together with the exact max stack and locals, such a method is valid without ASM COMPUTE_FRAMES or COMPUTE_MAXS.
+         * the check is skipped when ByteBuddy disabled frame generation, as no frames are written.
+         */
+        public Compute strict() {
+            strict = true;
+            return this;
+        }
+
+        /**
+         * max stack is computed by {@link Flow} over labels and jumps, max locals is the max of referenced locals and computed locals.
+         * when optimized, max stack adds the {@link Peephole#extra()} words used by DUP, as an upper bound.
+         */
         @Override
-        public  Size apply(MethodVisitor v, Implementation.Context c, MethodDescription m) {
+        public Size apply(MethodVisitor v, Implementation.Context c, MethodDescription m) {
+            if (visitor != null) throw new IllegalStateException("streaming Compute is written to its bound visitor");
             clearOperates();
             frame.clear();
-            Size size = Size.ZERO;
+            Peephole p = optimize ? new Peephole(v) : null;
+            Flow flow = new Flow(p == null ? v : p);
             for (ByteCodeAppender mani : manipulates) {
-                size = size.merge(mani.apply(v, c, m));
+                if (mani instanceof Segment) {
+                    for (StackManipulation x : ((Segment) mani).operates) flow.apply(x, c);
+                } else if (mani instanceof Fragment) {
+                    flow.apply(((Fragment) mani).appender, c, m, ((Fragment) mani).after);
+                } else flow.apply(mani, c, m, -1);
+            }
+            int stack = flow.maxStack();
+            if (p != null) {
+                p.flush();
+                rewrites = p.rewrites();
+                stack += p.extra();
             }
-            return size.merge(new Size(0, locals.size()));
+            if (strict && Manipulate.frames(c)) {
+                List<Label> missing = flow.unframed();
+                if (!missing.isEmpty())
+                    throw new IllegalStateException("missing frame of " + missing.size() + " label(s) in " + (m == null ? method : m));
+            }
+            return new Size(stack, Math.max(flow.maxLocals(), Math.max(maxLocals, locals.size())));
         }
 
     }
@@ -1692,4 +4123,27 @@ public interface Assembler {
      * @param method the method own this ASM code (null if not a Method)
      */
     static Compute compute(TypeDescription target, MethodDescription method){return new Compute(target, method);}
+
+    /**
+     * @param members the members index shared by Compute of same target
+     * @see #compute(TypeDescription, MethodDescription)
+     */
+    static Compute compute(TypeDescription target, MethodDescription method, Members members){return new Compute(target, method, members);}
+
+    /**
+     * Use a streaming Compute: the generator runs when the method is written, with the Compute bound to the
+     * real MethodVisitor, so no operates are buffered.
+     *
+     * @param target the type own this ASM code
+     * @param method the method own this ASM code
+     * @param build  the generator
+     * @see Compute#bind(MethodVisitor, Implementation.Context)
+     */
+    static ByteCodeManipulates stream(TypeDescription target, MethodDescription method, Consumer<Compute> build) {
+        return (v, c, m) -> {
+            Compute x = new Compute(target, method).bind(v, c);
+            build.accept(x);
+            return x.finish();
+        };
+    }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2022. Zen Liu.
+ * SPDX-License-Identifier: GPL-2.0-only WITH Classpath-exception-2.0
+ */
+
+package cn.zenliu.assembler;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
+import net.bytebuddy.description.ByteCodeElement;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDefinition;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.scaffold.subclass.ConstructorStrategy;
+
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BeanCopier is the base of generated copiers, which copy properties of a source type to a target type
+ * by a straight-line method without reflection.
+ * <p>
+ * Properties are read by getters ({@code getX()} or {@code isX()} of boolean) or fields, written by setters
+ * ({@code setX(x)}, result ignored) or non-final fields, getters and setters first.
+ * A property is copied when the names match and the source type is assignable to the target type,
+ * with primitive widening, boxing or unboxing only where needed.
+ * A null wrapper copied to a primitive property throws {@link NullPointerException}.
+ * <p>
+ * A generated copier is named {@code T$$CopierN} in the package of the target type {@code T},
+ * so only members visible from that package are used.
+ *
+ * @author Zen.Liu
+ * @since 2022-11-27
+ */
+public abstract class BeanCopier<S, T> {
+    /**
+     * copiers by source then target class. Entries live with the classes, so no loader is pinned and nothing is evicted,
+     * a copier type is generated once per pair, except by threads racing on the first request.
+     */
+    static final ClassValue<ClassValue<BeanCopier<?, ?>>> CACHE = new ClassValue<ClassValue<BeanCopier<?, ?>>>() {
+        @Override
+        protected ClassValue<BeanCopier<?, ?>> computeValue(Class<?> source) {
+            return new ClassValue<BeanCopier<?, ?>>() {
+                @Override
+                protected BeanCopier<?, ?> computeValue(Class<?> target) {
+                    return create(source, target);
+                }
+            };
+        }
+    };
+    static final String SUFFIX = "$$Copier";
+    static final AtomicInteger SEQ = new AtomicInteger();
+    final String[] properties;
+
+    protected BeanCopier(String[] properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * copy properties from source to target
+     */
+    public abstract void copy(S source, T target);
+
+    /**
+     * @return names of copied properties
+     */
+    public String[] properties() {
+        return properties.clone();
+    }
+
+    /**
+     * @return the cached copier of a type pair, generated on first request
+     */
+    @SuppressWarnings("unchecked")
+    public static <S, T> BeanCopier<S, T> of(Class<S> source, Class<T> target) {
+        return (BeanCopier<S, T>) CACHE.get(source).get(target);
+    }
+
+    static BeanCopier<?, ?> create(Class<?> source, Class<?> target) {
+        TypeDescription s = TypeDescription.ForLoadedType.of(source), t = TypeDescription.ForLoadedType.of(target);
+        List<String> properties = new ArrayList<>();
+        DynamicType.Unloaded<?> u = make(s, t, target.getName() + SUFFIX + SEQ.incrementAndGet(), ClassFileVersion.ofThisVm(ClassFileVersion.JAVA_V8), properties);
+        try {
+            return (BeanCopier<?, ?>) TypeBuilder.inject(target, u).getConstructor(String[].class)
+                    .newInstance((Object) properties.toArray(new String[0]));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("fail to create copier from " + source + " to " + target, e);
+        }
+    }
+
+    /**
+     * make the copier type of a type pair
+     *
+     * @param name       the copier type name, in package of target
+     * @param properties receive names of copied properties
+     */
+    public static DynamicType.Unloaded<?> make(TypeDescription source, TypeDescription target, String name, ClassFileVersion version, List<String> properties) {
+        DynamicType.Builder<?> b = new ByteBuddy(version)
+                .subclass(BeanCopier.class, ConstructorStrategy.Default.IMITATE_SUPER_CLASS_OPENING)
+                .name(name)
+                .modifiers(Modifier.PUBLIC | Modifier.FINAL);
+        TypeDescription self = b.toTypeDescription();
+        Map<String, ByteCodeElement> readers = properties(source, self, true);
+        Map<String, ByteCodeElement> writers = properties(target, self, false);
+        List<ByteCodeElement[]> pairs = new ArrayList<>();
+        writers.forEach((n, w) -> {
+            ByteCodeElement r = readers.get(n);
+            if (r != null && assignable(type(r, true), type(w, false))) {
+                pairs.add(new ByteCodeElement[]{r, w});
+                properties.add(n);
+            }
+        });
+        return TypeBuilder.with(b).methodCompute(Maker.method().declaringClass(self).name("copy").modifiers(Modifier.PUBLIC)
+                        .parameter(p -> p.name("source").type(Object.class)).parameter(p -> p.name("target").type(Object.class)).make(),
+                c -> {
+                    c.loadParameter(0).cast(source, true).storeLocal()
+                            .loadParameter(1).cast(target, true).storeLocal();
+                    for (ByteCodeElement[] p : pairs) {
+                        c.loadLocal(1).loadLocal(0);
+                        read(c, p[0]);
+                        assign(c, type(p[0], true), type(p[1], false));
+                        write(c, p[1]);
+                    }
+                    return c.returns();
+                }).$().get().make();
+    }
+
+    /**
+     * @param reader readers or writers
+     * @return properties of a type visible from the copier, by name
+     */
+    static Map<String, ByteCodeElement> properties(TypeDescription type, TypeDescription copier, boolean reader) {
+        Map<String, ByteCodeElement> r = new LinkedHashMap<>();
+        for (TypeDefinition t = type; t != null && !t.represents(Object.class); t = t.getSuperClass())
+            for (MethodDescription m : t.getDeclaredMethods()) {
+                if (m.isStatic() || !m.isMethod() || m.isBridge() || !m.isVisibleTo(copier)) continue;
+                String n = m.getName();
+                int prefix = 0;
+                if (reader && m.getParameters().isEmpty() && !m.getReturnType().represents(void.class))
+                    prefix = n.startsWith("get") ? 3 : n.startsWith("is") && m.getReturnType().represents(boolean.class) ? 2 : 0;
+                else if (!reader && m.getParameters().size() == 1 && n.startsWith("set")) prefix = 3;
+                if (prefix == 0 || n.length() == prefix) continue;
+                r.putIfAbsent(Character.toLowerCase(n.charAt(prefix)) + n.substring(prefix + 1), m);
+            }
+        for (FieldDescription f : FieldAccessor.fields(type))
+            if (f.isVisibleTo(copier) && (reader || !f.isFinal())) r.putIfAbsent(f.getName(), f);
+        return r;
+    }
+
+    static TypeDescription type(ByteCodeElement e, boolean reader) {
+        if (e instanceof FieldDescription) return ((FieldDescription) e).getType().asErasure();
+        MethodDescription m = (MethodDescription) e;
+        return reader ? m.getReturnType().asErasure() : m.getParameters().get(0).getType().asErasure();
+    }
+
+    /**
+     * @return from is assignable to type by identity, primitive widening, boxing or unboxing
+     */
+    static boolean assignable(TypeDescription from, TypeDescription to) {
+        if (from.equals(to)) return true;
+        if (from.isPrimitive() && to.isPrimitive()) return widening(from, to);
+        if (from.isPrimitive()) return from.asBoxed().isAssignableTo(to);
+        if (to.isPrimitive()) {
+            TypeDescription u = from.asUnboxed();
+            return u.isPrimitive() && (u.equals(to) || widening(u, to));
+        }
+        return from.isAssignableTo(to);
+    }
+
+    /**
+     * @return widening primitive conversion of JLS 5.1.2
+     */
+    static boolean widening(TypeDescription from, TypeDescription to) {
+        String order = "BSIJFD";
+        int f = from.represents(char.class) ? 1 : order.indexOf(from.getDescriptor());
+        int t = order.indexOf(to.getDescriptor());
+        return f >= 0 && t > f && !from.represents(boolean.class);
+    }
+
+    static void read(Assembler.Compute c, ByteCodeElement reader) {
+        if (reader instanceof FieldDescription) c.readField((FieldDescription) reader);
+        else c.invoke((MethodDescription) reader);
+    }
+
+    static void write(Assembler.Compute c, ByteCodeElement writer) {
+        if (writer instanceof FieldDescription) c.writeField((FieldDescription) writer);
+        else {
+            MethodDescription m = (MethodDescription) writer;
+            c.invoke(m);
+            if (!m.getReturnType().represents(void.class)) c.pop();
+        }
+    }
+
+    static void assign(Assembler.Compute c, TypeDescription from, TypeDescription to) {
+        if (from.equals(to)) return;
+        if (from.isPrimitive() && to.isPrimitive()) c.convert(to);
+        else if (from.isPrimitive()) c.box();
+        else if (to.isPrimitive()) {
+            c.unbox();
+            if (!from.asUnboxed().equals(to)) c.convert(to);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2022. Zen Liu.
+ * SPDX-License-Identifier: GPL-2.0-only WITH Classpath-exception-2.0
+ */
+
+package cn.zenliu.assembler;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.scaffold.subclass.ConstructorStrategy;
+
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.bytebuddy.matcher.ElementMatchers.*;
+
+/**
+ * BinaryCodec is the base of generated codecs, which encode fields of a type to a {@link ByteBuffer} and decode back,
+ * by direct relative get and put calls in field order, without reflection.
+ * <p>
+ * Fields are the accessible fields of {@link FieldAccessor#fields(TypeDescription)}, which must not be final.
+ * Supported field types are primitives, String and arrays of them.
+ * boolean is one byte; String and arrays are prefixed by an int length, -1 for null, String in UTF-8.
+ * When every field is primitive, the record has a fixed size of {@link #fixed()},
+ * and both {@link #encode} and {@link #decode(ByteBuffer, Object)} allocate nothing.
+ * <p>
+ * A generated codec of type {@code T} is named {@code T$$CodecN} in the package of {@code T}.
+ *
+ * @author Zen.Liu
+ * @since 2022-11-27
+ */
+public abstract class BinaryCodec<T> {
+    /**
+     * codecs of loaded classes, weakly keyed by the class
+     */
+    static final ClassValue<BinaryCodec<?>> CACHE = new ClassValue<BinaryCodec<?>>() {
+        @Override
+        protected BinaryCodec<?> computeValue(Class<?> type) {
+            return create(type);
+        }
+    };
+    static final String SUFFIX = "$$Codec";
+    /**
+     * {@link ClassValue} may compute a class in several threads at once, each defines its own codec type
+     */
+    static final AtomicInteger SEQ = new AtomicInteger();
+    static final TypeDescription BUFFER = TypeDescription.ForLoadedType.of(ByteBuffer.class);
+    static final TypeDescription SELF = TypeDescription.ForLoadedType.of(BinaryCodec.class);
+    final int fixed;
+
+    protected BinaryCodec(int fixed) {
+        this.fixed = fixed;
+    }
+
+    /**
+     * @return the cached codec of a class, generated on first request
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> BinaryCodec<T> of(Class<T> type) {
+        return (BinaryCodec<T>) CACHE.get(type);
+    }
+
+    /**
+     * @return size in bytes of every record, or -1 if not fixed
+     */
+    public int fixed() {
+        return fixed;
+    }
+
+    /**
+     * write fields of value at position of buffer
+     */
+    public abstract void encode(T value, ByteBuffer buffer);
+
+    /**
+     * read fields at position of buffer into target
+     *
+     * @return the target
+     */
+    public abstract T decode(ByteBuffer buffer, T target);
+
+    /**
+     * read fields at position of buffer into a new instance
+     */
+    public abstract T decode(ByteBuffer buffer);
+
+    /**
+     * @return size in bytes of a field type, 0 for a length prefixed type, -1 for unsupported
+     */
+    static int size(TypeDescription type) {
+        if (type.isPrimitive()) {
+            if (type.represents(boolean.class) || type.represents(byte.class)) return 1;
+            if (type.represents(void.class)) return -1;
+            return type.represents(char.class) || type.represents(short.class) ? 2
+                    : type.represents(int.class) || type.represents(float.class) ? 4 : 8;
+        }
+        if (type.represents(String.class)) return 0;
+        if (type.isArray()) {
+            TypeDescription c = type.getComponentType();
+            return c.isPrimitive() || c.represents(String.class) ? 0 : -1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the put method of a field type, on ByteBuffer for primitives except boolean, or a static helper of BinaryCodec
+     */
+    static MethodDescription put(TypeDescription type) {
+        if (type.isPrimitive() && !type.represents(boolean.class))
+            return BUFFER.getDeclaredMethods().filter(named("put" + suffix(type)).and(takesArguments(type))).getOnly();
+        return SELF.getDeclaredMethods().filter(named("put" + helper(type)).and(takesArguments(BUFFER, type))).getOnly();
+    }
+
+    /**
+     * @return the get method of a field type
+     * @see #put(TypeDescription)
+     */
+    static MethodDescription get(TypeDescription type) {
+        if (type.isPrimitive() && !type.represents(boolean.class))
+            return BUFFER.getDeclaredMethods().filter(named("get" + suffix(type)).and(takesArguments(0))).getOnly();
+        return SELF.getDeclaredMethods().filter(named("get" + helper(type)).and(takesArguments(BUFFER))).getOnly();
+    }
+
+    static String suffix(TypeDescription primitive) {
+        if (primitive.represents(byte.class)) return "";
+        String n = primitive.getName();
+        return Character.toUpperCase(n.charAt(0)) + n.substring(1);
+    }
+
+    static String helper(TypeDescription type) {
+        if (type.represents(boolean.class)) return "Boolean";
+        if (type.represents(String.class)) return "String";
+        TypeDescription c = type.getComponentType();
+        return (c.represents(String.class) ? "String" : suffix(c).isEmpty() ? "Byte" : suffix(c)) + "s";
+    }
+
+    /**
+     * make the codec type of a type
+     *
+     * @param name the codec type name, in package of type
+     */
+    public static DynamicType.Unloaded<?> make(TypeDescription type, String name, ClassFileVersion version) {
+        List<FieldDescription> fields = FieldAccessor.fields(type);
+        for (FieldDescription f : fields)
+            if (size(f.getType().asErasure()) < 0 || f.isFinal())
+                throw new IllegalArgumentException("unsupported field " + f + " to encode");
+        MethodDescription init = type.getDeclaredMethods().filter(isConstructor().and(takesArguments(0))).getOnly();
+        DynamicType.Builder<?> b = new ByteBuddy(version)
+                .subclass(BinaryCodec.class, ConstructorStrategy.Default.IMITATE_SUPER_CLASS_OPENING)
+                .name(name)
+                .modifiers(Modifier.PUBLIC | Modifier.FINAL);
+        TypeDescription self = b.toTypeDescription();
+        if (!init.isVisibleTo(self)) throw new IllegalArgumentException("no accessible default constructor of " + type);
+        MethodDescription decodeInto = SELF.getDeclaredMethods().filter(named("decode").and(takesArguments(2))).getOnly();
+        return TypeBuilder.with(b)
+                .methodCompute(Maker.method().declaringClass(self).name("encode").modifiers(Modifier.PUBLIC)
+                                .parameter(p -> p.name("value").type(Object.class)).parameter(p -> p.name("buffer").type(ByteBuffer.class)).make(),
+                        c -> {
+                            c.loadParameter(0).cast(type, true).storeLocal();
+                            for (FieldDescription f : fields) {
+                                MethodDescription m = put(f.getType().asErasure());
+                                if (m.isStatic()) c.loadParameter(1).loadLocal(0).readField(f).invoke(m);
+                                else c.loadParameter(1).loadLocal(0).readField(f).invoke(m).pop();
+                            }
+                            return c.returns();
+                        })
+                .methodCompute(Maker.method().declaringClass(self).name("decode").modifiers(Modifier.PUBLIC).returnType(Object.class)
+                                .parameter(p -> p.name("buffer").type(ByteBuffer.class)).parameter(p -> p.name("target").type(Object.class)).make(),
+                        c -> {
+                            c.loadParameter(1).cast(type, true).storeLocal();
+                            for (FieldDescription f : fields) {
+                                MethodDescription m = get(f.getType().asErasure());
+                                c.loadLocal(0).loadParameter(0).invoke(m).writeField(f);
+                            }
+                            return c.loadLocal(0).returns();
+                        })
+                .methodCompute(Maker.method().declaringClass(self).name("decode").modifiers(Modifier.PUBLIC).returnType(Object.class)
+                                .parameter(p -> p.name("buffer").type(ByteBuffer.class)).make(),
+                        c -> c.loadThis().loadParameter(0).creation(type).dup().invoke(init).invoke(decodeInto).returns())
+                .$().get().make();
+    }
+
+    /**
+     * @return fixed size of records of a type, or -1
+     */
+    static int fixed(TypeDescription type) {
+        int fixed = 0;
+        for (FieldDescription f : FieldAccessor.fields(type)) {
+            int s = size(f.getType().asErasure());
+            if (s <= 0) return -1;
+            fixed += s;
+        }
+        return fixed;
+    }
+
+    static BinaryCodec<?> create(Class<?> type) {
+        TypeDescription td = TypeDescription.ForLoadedType.of(type);
+        DynamicType.Unloaded<?> u = make(td, type.getName() + SUFFIX + SEQ.incrementAndGet(), ClassFileVersion.ofThisVm(ClassFileVersion.JAVA_V8));
+        try {
+            return (BinaryCodec<?>) TypeBuilder.inject(type, u).getConstructor(int.class).newInstance(fixed(td));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("fail to create codec of " + type, e);
+        }
+    }
+
+    //region Helpers
+    //@formatter:off
+    protected static void putBoolean(ByteBuffer b, boolean v) {b.put((byte) (v ? 1 : 0));}
+    protected static boolean getBoolean(ByteBuffer b) {return b.get() != 0;}
+    //@formatter:on
+
+    protected static void putString(ByteBuffer b, String v) {
+        if (v == null) {
+            b.putInt(-1);
+            return;
+        }
+        byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+        b.putInt(bytes.length).put(bytes);
+    }
+
+    protected static String getString(ByteBuffer b) {
+        int n = b.getInt();
+        if (n < 0) return null;
+        byte[] bytes = new byte[n];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * write length prefix of an array, -1 for null
+     *
+     * @return count of elements to write
+     */
+    static int length(ByteBuffer b, Object array, int length) {
+        b.putInt(array == null ? -1 : length);
+        return array == null ? 0 : length;
+    }
+
+    //@formatter:off
+    protected static void putBytes(ByteBuffer b, byte[] v) {if (length(b, v, v == null ? 0 : v.length) > 0) b.put(v);}
+    protected static void putBooleans(ByteBuffer b, boolean[] v) {for (int i = 0, n = length(b, v, v == null ? 0 : v.length); i < n; i++) putBoolean(b, v[i]);}
+    protected static void putChars(ByteBuffer b, char[] v) {for (int i = 0, n = length(b, v, v == null ? 0 : v.length); i < n; i++) b.putChar(v[i]);}
+    protected static void putShorts(ByteBuffer b, short[] v) {for (int i = 0, n = length(b, v, v == null ? 0 : v.length); i < n; i++) b.putShort(v[i]);}
+    protected static void putInts(ByteBuffer b, int[] v) {for (int i = 0, n = length(b, v, v == null ? 0 : v.length); i < n; i++) b.putInt(v[i]);}
+    protected static void putLongs(ByteBuffer b, long[] v) {for (int i = 0, n = length(b, v, v == null ? 0 : v.length); i < n; i++) b.putLong(v[i]);}
+    protected static void putFloats(ByteBuffer b, float[] v) {for (int i = 0, n = length(b, v, v == null ? 0 : v.length); i < n; i++) b.putFloat(v[i]);}
+    protected static void putDoubles(ByteBuffer b, double[] v) {for (int i = 0, n = length(b, v, v == null ? 0 : v.length); i < n; i++) b.putDouble(v[i]);}
+    protected static void putStrings(ByteBuffer b, String[] v) {for (int i = 0, n = length(b, v, v == null ? 0 : v.length); i < n; i++) putString(b, v[i]);}
+
+    protected static byte[] getBytes(ByteBuffer b) {int n = b.getInt(); if (n < 0) return null; byte[] v = new byte[n]; b.get(v); return v;}
+    protected static boolean[] getBooleans(ByteBuffer b) {int n = b.getInt(); if (n < 0) return null; boolean[] v = new boolean[n]; for (int i = 0; i < n; i++) v[i] = getBoolean(b); return v;}
+    protected static char[] getChars(ByteBuffer b) {int n = b.getInt(); if (n < 0) return null; char[] v = new char[n]; for (int i = 0; i < n; i++) v[i] = b.getChar(); return v;}
+    protected static short[] getShorts(ByteBuffer b) {int n = b.getInt(); if (n < 0) return null; short[] v = new short[n]; for (int i = 0; i < n; i++) v[i] = b.getShort(); return v;}
+    protected static int[] getInts(ByteBuffer b) {int n = b.getInt(); if (n < 0) return null; int[] v = new int[n]; for (int i = 0; i < n; i++) v[i] = b.getInt(); return v;}
+    protected static long[] getLongs(ByteBuffer b) {int n = b.getInt(); if (n < 0) return null; long[] v = new long[n]; for (int i = 0; i < n; i++) v[i] = b.getLong(); return v;}
+    protected static float[] getFloats(ByteBuffer b) {int n = b.getInt(); if (n < 0) return null; float[] v = new float[n]; for (int i = 0; i < n; i++) v[i] = b.getFloat(); return v;}
+    protected static double[] getDoubles(ByteBuffer b) {int n = b.getInt(); if (n < 0) return null; double[] v = new double[n]; for (int i = 0; i < n; i++) v[i] = b.getDouble(); return v;}
+    protected static String[] getStrings(ByteBuffer b) {int n = b.getInt(); if (n < 0) return null; String[] v = new String[n]; for (int i = 0; i < n; i++) v[i] = getString(b); return v;}
+    //@formatter:on
+    //endregion
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2022. Zen Liu.
+ * SPDX-License-Identifier: GPL-2.0-only WITH Classpath-exception-2.0
+ */
+
+package cn.zenliu.assembler;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDefinition;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.scaffold.subclass.ConstructorStrategy;
+import net.bytebuddy.jar.asm.Label;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * FieldAccessor is the base of generated field accessors, which read and write instance fields of a type
+ * by direct field instructions instead of reflection.
+ * <p>
+ * A generated accessor of type {@code T} is named {@code T$$AccessorN} in the package of {@code T}, and declares
+ * <ul>
+ *     <li>typed {@code getX(T)} and {@code setX(T, X)} for each accessible field {@code x}, no setter for final fields</li>
+ *     <li>{@link #get(Object, int)} and {@link #set(Object, int, Object)} by field index, dispatched by a tableswitch</li>
+ * </ul>
+ * Accessible fields are the non-static fields of the type and its super types visible from the package of the type,
+ * in declaration order from the top super type. Private fields are not accessible.
+ * A field hidden by an accessible field of the same name in a sub type is not accessible, the most derived one is kept.
+ *
+ * @author Zen.Liu
+ * @since 2022-11-27
+ */
+public abstract class FieldAccessor<T> {
+    /**
+     * accessors of loaded classes, weakly keyed by the class
+     */
+    static final ClassValue<FieldAccessor<?>> CACHE = new ClassValue<FieldAccessor<?>>() {
+        @Override
+        protected FieldAccessor<?> computeValue(Class<?> type) {
+            return create(type);
+        }
+    };
+    static final String SUFFIX = "$$Accessor";
+    /**
+     * {@link ClassValue} may compute a class in several threads at once, each defines its own accessor type
+     */
+    static final AtomicInteger SEQ = new AtomicInteger();
+    final String[] names;
+
+    protected FieldAccessor(String[] names) {
+        this.names = names;
+    }
+
+    /**
+     * @return the cached accessor of a class, generated on first request
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> FieldAccessor<T> of(Class<T> type) {
+        return (FieldAccessor<T>) CACHE.get(type);
+    }
+
+    /**
+     * @return names of fields by index
+     */
+    public String[] names() {
+        return names.clone();
+    }
+
+    /**
+     * @return index of field or -1
+     */
+    public int index(String name) {
+        for (int i = 0; i < names.length; i++) if (names[i].equals(name)) return i;
+        return -1;
+    }
+
+    /**
+     * @return the field value, primitives are boxed
+     */
+    public abstract Object get(T target, int index);
+
+    /**
+     * @param value the field value, primitives are unboxed
+     */
+    public abstract void set(T target, int index, Object value);
+
+    /**
+     * used by generated accessors for invalid index
+     */
+    protected static IllegalArgumentException invalid(int index) {
+        return new IllegalArgumentException("no accessible field at index " + index);
+    }
+
+    /**
+     * @return the accessible fields of a type, see {@link FieldAccessor}
+     */
+    public static List<FieldDescription> fields(TypeDescription type) {
+        List<TypeDefinition> hierarchy = new ArrayList<>();
+        for (TypeDefinition t = type; t != null && !t.represents(Object.class); t = t.getSuperClass())
+            hierarchy.add(0, t);
+        List<FieldDescription> r = new ArrayList<>();
+        for (TypeDefinition t : hierarchy)
+            for (FieldDescription f : t.getDeclaredFields())
+                if (!f.isStatic() && !f.isPrivate() && !f.isSynthetic()
+                        && (f.isPublic() && t.asErasure().isPublic() || t.asErasure().getPackage().equals(type.getPackage())))
+                    r.add(f);
+        Set<String> names = new HashSet<>();
+        for (int i = r.size() - 1; i >= 0; i--)
+            if (!names.add(r.get(i).getName())) r.remove(i);
+        return r;
+    }
+
+    /**
+     * make the accessor type of a type
+     *
+     * @param name the accessor type name, in package of type
+     */
+    public static DynamicType.Unloaded<?> make(TypeDescription type, String name, ClassFileVersion version) {
+        List<FieldDescription> fields = fields(type);
+        DynamicType.Builder<?> b = new ByteBuddy(version)
+                .subclass(FieldAccessor.class, ConstructorStrategy.Default.IMITATE_SUPER_CLASS_OPENING)
+                .name(name)
+                .modifiers(Modifier.PUBLIC | Modifier.FINAL);
+        TypeDescription self = b.toTypeDescription();
+        TypeBuilder tb = TypeBuilder.with(b);
+        TypeDescription object = TypeDescription.OBJECT;
+        MethodDescription invalid = TypeDescription.ForLoadedType.of(FieldAccessor.class).getDeclaredMethods()
+                .filter(named("invalid")).getOnly();
+        List<Integer> writable = new ArrayList<>();
+        for (int i = 0; i < fields.size(); i++) {
+            FieldDescription f = fields.get(i);
+            TypeDescription ft = f.getType().asErasure();
+            String property = Character.toUpperCase(f.getName().charAt(0)) + f.getName().substring(1);
+            tb.methodCompute(Maker.method().declaringClass(self).name("get" + property).modifiers(Modifier.PUBLIC)
+                            .returnType(ft.asGenericType()).parameter(p -> p.name("target").type(type.asGenericType())).make(),
+                    c -> c.loadParameter(0).readField(f).returns());
+            if (f.isFinal()) continue;
+            writable.add(i);
+            tb.methodCompute(Maker.method().declaringClass(self).name("set" + property).modifiers(Modifier.PUBLIC)
+                            .parameter(p -> p.name("target").type(type.asGenericType())).parameter(p -> p.name("value").type(ft.asGenericType())).make(),
+                    c -> c.loadParameter(0).loadParameter(1).writeField(f).returns());
+        }
+        int[] all = new int[fields.size()];
+        for (int i = 0; i < all.length; i++) all[i] = i;
+        int[] keys = writable.stream().mapToInt(Integer::intValue).toArray();
+        tb.methodCompute(Maker.method().declaringClass(self).name("get").modifiers(Modifier.PUBLIC).returnType(Object.class)
+                        .parameter(p -> p.name("target").type(object.asGenericType())).parameter(p -> p.name("index").type(int.class)).make(),
+                c -> {
+                    Label dflt = new Label();
+                    Label[] labels = labels(all.length);
+                    if (all.length == 0) return c.loadParameter(1).invoke(invalid).aThrow();
+                    c.loadParameter(1).switchInt(dflt, all, labels);
+                    for (int i = 0; i < all.length; i++) {
+                        FieldDescription f = fields.get(i);
+                        c.label(labels[i]).loadParameter(0).cast(type, true).readField(f);
+                        if (f.getType().isPrimitive()) c.box();
+                        c.returns();
+                    }
+                    return c.label(dflt).loadParameter(1).invoke(invalid).aThrow();
+                });
+        tb.methodCompute(Maker.method().declaringClass(self).name("set").modifiers(Modifier.PUBLIC)
+                        .parameter(p -> p.name("target").type(object.asGenericType())).parameter(p -> p.name("index").type(int.class))
+                        .parameter(p -> p.name("value").type(object.asGenericType())).make(),
+                c -> {
+                    Label dflt = new Label();
+                    Label[] labels = labels(keys.length);
+                    if (keys.length == 0) return c.loadParameter(1).invoke(invalid).aThrow();
+                    c.loadParameter(1).switchInt(dflt, keys, labels);
+                    for (int i = 0; i < keys.length; i++) {
+                        FieldDescription f = fields.get(keys[i]);
+                        TypeDescription ft = f.getType().asErasure();
+                        c.label(labels[i]).loadParameter(0).cast(type, true).loadParameter(2);
+                        if (ft.isPrimitive()) c.cast(ft.asBoxed(), true).unbox();
+                        else c.cast(ft, true);
+                        c.writeField(f).returns();
+                    }
+                    return c.label(dflt).loadParameter(1).invoke(invalid).aThrow();
+                });
+        return tb.$().get().make();
+    }
+
+    static Label[] labels(int n) {
+        Label[] r = new Label[n];
+        for (int i = 0; i < n; i++) r[i] = new Label();
+        return r;
+    }
+
+    static FieldAccessor<?> create(Class<?> type) {
+        TypeDescription td = TypeDescription.ForLoadedType.of(type);
+        DynamicType.Unloaded<?> u = make(td, type.getName() + SUFFIX + SEQ.incrementAndGet(), ClassFileVersion.ofThisVm(ClassFileVersion.JAVA_V8));
+        List<FieldDescription> fields = fields(td);
+        String[] names = new String[fields.size()];
+        for (int i = 0; i < names.length; i++) names[i] = fields.get(i).getName();
+        try {
+            return (FieldAccessor<?>) TypeBuilder.inject(type, u).getConstructor(String[].class).newInstance((Object) names);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("fail to create accessor of " + type, e);
+        }
+    }
+}
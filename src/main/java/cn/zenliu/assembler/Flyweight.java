@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2022. Zen Liu.
+ * SPDX-License-Identifier: GPL-2.0-only WITH Classpath-exception-2.0
+ */
+
+package cn.zenliu.assembler;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.scaffold.subclass.ConstructorStrategy;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static net.bytebuddy.matcher.ElementMatchers.*;
+
+/**
+ * Flyweight is the base of generated flyweights, which view fixed-layout records in a {@link ByteBuffer},
+ * such as a direct or memory-mapped buffer, by typed getters and setters without any allocation.
+ * <p>
+ * A {@link Layout} is computed from field specs of {@link Maker#fieldToken()} or {@link Maker#field()},
+ * only primitive fields are supported, boolean is one byte.
+ * The generated flyweight declares {@code getX()} and {@code setX(x)} for each field {@code x},
+ * which use absolute get and put of the buffer at {@code base + index * stride + offset of x},
+ * so the buffer position and limit are never touched, and the byte order of the buffer is used.
+ * A flyweight is a cursor: {@link #wrap} a buffer once, then move by {@link #at(int)}.
+ * It is not thread safe, use one flyweight per thread over a shared buffer.
+ * <p>
+ * Getters and setters could be declared by interfaces implemented by the generated flyweight,
+ * with exactly the same signatures.
+ *
+ * @author Zen.Liu
+ * @since 2022-11-27
+ */
+public abstract class Flyweight {
+    static final String SUFFIX = "$$Flyweight";
+    static final AtomicInteger SEQ = new AtomicInteger();
+    static final TypeDescription SELF = TypeDescription.ForLoadedType.of(Flyweight.class);
+    static final FieldDescription BUFFER = SELF.getDeclaredFields().filter(named("buffer")).getOnly();
+    static final FieldDescription OFFSET = SELF.getDeclaredFields().filter(named("offset")).getOnly();
+    protected final Layout layout;
+    protected ByteBuffer buffer;
+    protected int base;
+    /**
+     * absolute offset of current record
+     */
+    protected int offset;
+
+    protected Flyweight(Layout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * view records of a buffer start at base, and move to the first record
+     */
+    public Flyweight wrap(ByteBuffer buffer, int base) {
+        if (base < 0 || base > buffer.capacity()) throw new IndexOutOfBoundsException("base " + base);
+        this.buffer = buffer;
+        this.base = base;
+        this.offset = base;
+        return this;
+    }
+
+    /**
+     * move to record at index, bounds are checked by the buffer on access
+     */
+    public Flyweight at(int index) {
+        offset = base + index * layout.stride;
+        return this;
+    }
+
+    /**
+     * @return index of current record
+     */
+    public int index() {
+        return (offset - base) / layout.stride;
+    }
+
+    /**
+     * @return count of whole records from base to the capacity of the buffer
+     */
+    public int capacity() {
+        return (buffer.capacity() - base) / layout.stride;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public Layout layout() {
+        return layout;
+    }
+
+    //@formatter:off
+    protected static boolean getBoolean(ByteBuffer b, int i) {return b.get(i) != 0;}
+    protected static void putBoolean(ByteBuffer b, int i, boolean v) {b.put(i, (byte) (v ? 1 : 0));}
+    //@formatter:on
+
+    /**
+     * @return the absolute get method of a primitive, on ByteBuffer except boolean
+     */
+    static MethodDescription get(TypeDescription type) {
+        if (type.represents(boolean.class))
+            return SELF.getDeclaredMethods().filter(named("getBoolean")).getOnly();
+        return BinaryCodec.BUFFER.getDeclaredMethods()
+                .filter(named("get" + BinaryCodec.suffix(type)).and(takesArguments(int.class)).and(returns(type))).getOnly();
+    }
+
+    /**
+     * @return the absolute put method of a primitive
+     * @see #get(TypeDescription)
+     */
+    static MethodDescription put(TypeDescription type) {
+        if (type.represents(boolean.class))
+            return SELF.getDeclaredMethods().filter(named("putBoolean")).getOnly();
+        return BinaryCodec.BUFFER.getDeclaredMethods()
+                .filter(named("put" + BinaryCodec.suffix(type)).and(takesArguments(TypeDescription.ForLoadedType.of(int.class), type))).getOnly();
+    }
+
+    /**
+     * make the flyweight type of a layout
+     *
+     * @param name       the flyweight type name
+     * @param interfaces interfaces to implement, which declare getters and setters of the layout
+     */
+    public static DynamicType.Unloaded<?> make(String name, Layout layout, ClassFileVersion version, TypeDescription... interfaces) {
+        DynamicType.Builder<?> b = new ByteBuddy(version)
+                .subclass(Flyweight.class, ConstructorStrategy.Default.IMITATE_SUPER_CLASS_OPENING)
+                .implement(interfaces)
+                .name(name)
+                .modifiers(Modifier.PUBLIC | Modifier.FINAL);
+        TypeDescription self = b.toTypeDescription();
+        TypeBuilder tb = TypeBuilder.with(b);
+        for (int i = 0; i < layout.names.length; i++) {
+            TypeDescription type = layout.types[i];
+            int offset = layout.offsets[i];
+            String property = Character.toUpperCase(layout.names[i].charAt(0)) + layout.names[i].substring(1);
+            MethodDescription get = get(type), put = put(type);
+            tb.methodCompute(Maker.method().declaringClass(self).name("get" + property).modifiers(Modifier.PUBLIC)
+                            .returnType(type.asGenericType()).make(),
+                    c -> c.loadThis().readField(BUFFER).loadThis().readField(OFFSET).constant(offset).add()
+                            .invoke(get).returns());
+            tb.methodCompute(Maker.method().declaringClass(self).name("set" + property).modifiers(Modifier.PUBLIC)
+                            .parameter(p -> p.name("value").type(type.asGenericType())).make(),
+                    c -> {
+                        c.loadThis().readField(BUFFER).loadThis().readField(OFFSET).constant(offset).add()
+                                .loadParameter(0).invoke(put);
+                        if (!put.isStatic()) c.pop();
+                        return c.returns();
+                    });
+        }
+        return tb.$().get().make();
+    }
+
+    /**
+     * generate and load a flyweight type of a layout in the package of host
+     *
+     * @param interfaces interfaces to implement, must be accessible from host
+     * @return factory of new flyweights, which should be wrapped before use
+     */
+    public static Supplier<Flyweight> factory(Class<?> host, Layout layout, Class<?>... interfaces) {
+        TypeDescription[] faces = new TypeDescription[interfaces.length];
+        for (int i = 0; i < faces.length; i++) faces[i] = TypeDescription.ForLoadedType.of(interfaces[i]);
+        DynamicType.Unloaded<?> u = make(host.getName() + SUFFIX + SEQ.incrementAndGet(), layout,
+                ClassFileVersion.ofThisVm(ClassFileVersion.JAVA_V8), faces);
+        Constructor<?> ctor;
+        try {
+            ctor = TypeBuilder.inject(host, u).getConstructor(Layout.class);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("fail to create flyweight in " + host, e);
+        }
+        return () -> {
+            try {
+                return (Flyweight) ctor.newInstance(layout);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("fail to create flyweight of " + ctor.getDeclaringClass(), e);
+            }
+        };
+    }
+
+    /**
+     * Layout of a record: fields in declaration order, each aligned to its size, with padding between,
+     * and the stride rounded up to the max alignment, as a C struct.
+     */
+    public static final class Layout {
+        final String[] names;
+        final TypeDescription[] types;
+        final int[] offsets;
+        final int stride;
+        final int alignment;
+
+        Layout(String[] names, TypeDescription[] types, int[] offsets, int stride, int alignment) {
+            this.names = names;
+            this.types = types;
+            this.offsets = offsets;
+            this.stride = stride;
+            this.alignment = alignment;
+        }
+
+        /**
+         * compute layout of field tokens, such as made by {@link Maker#fieldToken()}
+         */
+        public static Layout of(List<? extends FieldDescription.Token> fields) {
+            int n = fields.size();
+            String[] names = new String[n];
+            TypeDescription[] types = new TypeDescription[n];
+            for (int i = 0; i < n; i++) {
+                names[i] = fields.get(i).getName();
+                types[i] = fields.get(i).getType().asErasure();
+            }
+            return compute(names, types);
+        }
+
+        /**
+         * compute layout of fields, such as made by {@link Maker#field()}
+         */
+        public static Layout ofFields(List<? extends FieldDescription> fields) {
+            int n = fields.size();
+            String[] names = new String[n];
+            TypeDescription[] types = new TypeDescription[n];
+            for (int i = 0; i < n; i++) {
+                names[i] = fields.get(i).getName();
+                types[i] = fields.get(i).getType().asErasure();
+            }
+            return compute(names, types);
+        }
+
+        static Layout compute(String[] names, TypeDescription[] types) {
+            if (names.length == 0) throw new IllegalArgumentException("empty layout");
+            Set<String> seen = new HashSet<>();
+            int[] offsets = new int[names.length];
+            int offset = 0, alignment = 1;
+            for (int i = 0; i < names.length; i++) {
+                if (!types[i].isPrimitive() || types[i].represents(void.class))
+                    throw new IllegalArgumentException("unsupported field " + names[i] + " of " + types[i]);
+                if (!seen.add(names[i])) throw new IllegalArgumentException("duplicate field " + names[i]);
+                int size = BinaryCodec.size(types[i]);
+                offset = (offset + size - 1) / size * size;
+                offsets[i] = offset;
+                offset += size;
+                alignment = Math.max(alignment, size);
+            }
+            int stride = (offset + alignment - 1) / alignment * alignment;
+            return new Layout(names, types, offsets, stride, alignment);
+        }
+
+        //@formatter:off
+        /** @return count of fields */
+        public int size() {return names.length;}
+        public String name(int i) {return names[i];}
+        public TypeDescription type(int i) {return types[i];}
+        public int offset(int i) {return offsets[i];}
+        public String[] names() {return names.clone();}
+        public int[] offsets() {return offsets.clone();}
+        /** @return bytes between records */
+        public int stride() {return stride;}
+        /** @return max alignment of fields, a base of this alignment keeps every field aligned */
+        public int alignment() {return alignment;}
+        //@formatter:on
+
+        /**
+         * @return offset of field or -1
+         */
+        public int offset(String name) {
+            for (int i = 0; i < names.length; i++) if (names[i].equals(name)) return offsets[i];
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder("Layout{stride=").append(stride).append(", alignment=").append(alignment);
+            for (int i = 0; i < names.length; i++)
+                b.append(", ").append(names[i]).append(':').append(types[i].getName()).append('@').append(offsets[i]);
+            return b.append('}').toString();
+        }
+    }
+}
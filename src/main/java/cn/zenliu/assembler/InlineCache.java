@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2022. Zen Liu.
+ * SPDX-License-Identifier: GPL-2.0-only WITH Classpath-exception-2.0
+ */
+
+package cn.zenliu.assembler;
+
+import java.lang.invoke.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * InlineCache is the bootstrap of invokedynamic sites emitted by {@link Assembler.Compute#invokeCached},
+ * it is a per call site inline cache of a virtual or interface method.
+ * <p>
+ * The site starts with a fallback, which links a direct handle of the receiver class behind a class guard
+ * at the head of the chain, till {@link #LIMIT} receiver classes are linked.
+ * Then the site is relinked to a generic virtual handle as a megamorphic site.
+ * The fallback invokes the selected handle exactly, so arguments are never boxed,
+ * and a receiver class not accessible from the caller is served by the generic handle without a guard.
+ * <p>
+ * The generated type must be able to load this class at runtime.
+ *
+ * @author Zen.Liu
+ * @since 2022-11-27
+ */
+public final class InlineCache extends MutableCallSite {
+    /**
+     * max receiver classes linked before relinking to the generic handle, bimorphic by default
+     */
+    public static final int LIMIT = 2;
+    static final MethodHandle CHECK;
+    static final MethodHandle SELECT;
+
+    static {
+        MethodHandles.Lookup l = MethodHandles.lookup();
+        try {
+            CHECK = l.findStatic(InlineCache.class, "check", MethodType.methodType(boolean.class, Class.class, Object.class));
+            SELECT = l.findVirtual(InlineCache.class, "select", MethodType.methodType(MethodHandle.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final MethodHandles.Lookup lookup;
+    final String name;
+    /**
+     * method type without receiver
+     */
+    final MethodType method;
+    final MethodHandle generic;
+    final List<Class<?>> linked = new ArrayList<>(LIMIT);
+
+    InlineCache(MethodHandles.Lookup lookup, String name, MethodType type) throws ReflectiveOperationException {
+        super(type);
+        this.lookup = lookup;
+        this.name = name;
+        this.method = type.dropParameterTypes(0, 1);
+        this.generic = lookup.findVirtual(type.parameterType(0), name, method).asType(type);
+        //!! fallback: invoker(select(receiver), args...)
+        setTarget(MethodHandles.foldArguments(MethodHandles.exactInvoker(type),
+                SELECT.bindTo(this).asType(MethodType.methodType(MethodHandle.class, type.parameterType(0)))));
+    }
+
+    /**
+     * @param name the method name
+     * @param type the method type with receiver as first parameter
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type) throws ReflectiveOperationException {
+        return new InlineCache(lookup, name, type);
+    }
+
+    static boolean check(Class<?> type, Object receiver) {
+        return receiver != null && receiver.getClass() == type;
+    }
+
+    /**
+     * @return the handle to invoke for the receiver, of the exact site type
+     */
+    MethodHandle select(Object receiver) {
+        return receiver == null ? generic : link(receiver.getClass());
+    }
+
+    /**
+     * link a receiver class at head of the chain
+     *
+     * @return the handle for the receiver class
+     */
+    synchronized MethodHandle link(Class<?> type) {
+        if (linked.size() >= LIMIT) {
+            if (getTarget() != generic) setTarget(generic);
+            return generic;
+        }
+        MethodHandle direct;
+        try {
+            direct = lookup.findVirtual(type, name, method).asType(type());
+        } catch (ReflectiveOperationException e) {
+            //!! receiver class not accessible from the caller, a guard of generic would only take a slot
+            return generic;
+        }
+        if (linked.contains(type)) return direct;
+        MethodHandle test = CHECK.bindTo(type).asType(MethodType.methodType(boolean.class, type().parameterType(0)));
+        test = MethodHandles.dropArguments(test, 1, method.parameterList());
+        setTarget(MethodHandles.guardWithTest(test, direct, getTarget()));
+        linked.add(type);
+        return direct;
+    }
+
+    /**
+     * @return count of receiver classes linked
+     */
+    public synchronized int depth() {
+        return linked.size();
+    }
+}
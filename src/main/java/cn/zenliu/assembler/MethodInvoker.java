@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2022. Zen Liu.
+ * SPDX-License-Identifier: GPL-2.0-only WITH Classpath-exception-2.0
+ */
+
+package cn.zenliu.assembler;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.scaffold.subclass.ConstructorStrategy;
+import net.bytebuddy.jar.asm.Label;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.function.ObjIntConsumer;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * MethodInvoker is the base of generated invokers, which invoke a fixed list of methods by index
+ * with direct invoke instructions dispatched by a tableswitch, instead of {@link Method#invoke}.
+ * <ul>
+ *     <li>{@link #invoke(int, Object, Object[])} for any method</li>
+ *     <li>fixed arity overloads up to {@link #ARITY} arguments, without argument array</li>
+ *     <li>{@link #invokeLong} and {@link #invokeDouble} up to {@link #PRIMITIVE_ARITY} arguments for methods
+ *     only take and return primitives, without any allocation.
+ *     Methods of boolean and integral types use the long lane, methods of float and double use the double lane.
+ *     void results are 0.</li>
+ * </ul>
+ * The target is ignored for static methods. An index not of the overload, or an argument array not of the arity of the method,
+ * throws {@link IllegalArgumentException}. A boolean parameter in the long lane is true for any non-zero argument.
+ *
+ * @author Zen.Liu
+ * @since 2022-11-27
+ */
+public abstract class MethodInvoker {
+    /**
+     * max arguments of fixed arity overloads
+     */
+    public static final int ARITY = 3;
+    /**
+     * max arguments of primitive overloads
+     */
+    public static final int PRIMITIVE_ARITY = 2;
+    static final String SUFFIX = "$$Invoker";
+    static final AtomicInteger SEQ = new AtomicInteger();
+    static final MethodDescription INVALID = TypeDescription.ForLoadedType.of(MethodInvoker.class).getDeclaredMethods()
+            .filter(named("invalid")).getOnly();
+    static final MethodDescription CHECK = TypeDescription.ForLoadedType.of(MethodInvoker.class).getDeclaredMethods()
+            .filter(named("check")).getOnly();
+
+    protected MethodInvoker() {
+    }
+
+    //@formatter:off
+    public abstract Object invoke(int index, Object target, Object[] args);
+    public abstract Object invoke(int index, Object target);
+    public abstract Object invoke(int index, Object target, Object a0);
+    public abstract Object invoke(int index, Object target, Object a0, Object a1);
+    public abstract Object invoke(int index, Object target, Object a0, Object a1, Object a2);
+    public abstract long invokeLong(int index, Object target);
+    public abstract long invokeLong(int index, Object target, long a0);
+    public abstract long invokeLong(int index, Object target, long a0, long a1);
+    public abstract double invokeDouble(int index, Object target);
+    public abstract double invokeDouble(int index, Object target, double a0);
+    public abstract double invokeDouble(int index, Object target, double a0, double a1);
+    //@formatter:on
+
+    /**
+     * used by generated invokers for invalid index
+     */
+    protected static IllegalArgumentException invalid(int index) {
+        return new IllegalArgumentException("no method of the arity at index " + index);
+    }
+
+    /**
+     * used by generated invokers to check the argument array of method at index, null is as empty
+     */
+    protected static void check(int index, Object[] args, int arity) {
+        int n = args == null ? 0 : args.length;
+        if (n != arity)
+            throw new IllegalArgumentException("method at index " + index + " takes " + arity + " arguments, but given " + n);
+    }
+
+    /**
+     * @return the primitive lane of a method: J for boolean and integral, D for float and double, 0 for none
+     */
+    static char lane(MethodDescription m) {
+        if (m.getParameters().size() > PRIMITIVE_ARITY) return 0;
+        List<TypeDescription> types = new ArrayList<>(m.getParameters().asTypeList().asErasures());
+        if (!m.getReturnType().represents(void.class)) types.add(m.getReturnType().asErasure());
+        char r = 0;
+        for (TypeDescription t : types) {
+            if (!t.isPrimitive()) return 0;
+            char l = Assembler.Manipulate.lane(t);
+            l = l == 'F' || l == 'D' ? 'D' : 'J';
+            if (r != 0 && r != l) return 0;
+            r = l;
+        }
+        return r == 0 ? 'J' : r;
+    }
+
+    /**
+     * make an invoker type of methods
+     *
+     * @param name    the invoker type name, should in a package where all methods are accessible
+     * @param methods methods to invoke by index
+     */
+    public static DynamicType.Unloaded<?> make(String name, List<? extends MethodDescription> methods, ClassFileVersion version) {
+        DynamicType.Builder<?> b = new ByteBuddy(version)
+                .subclass(MethodInvoker.class, ConstructorStrategy.Default.IMITATE_SUPER_CLASS_OPENING)
+                .name(name)
+                .modifiers(Modifier.PUBLIC | Modifier.FINAL);
+        TypeDescription self = b.toTypeDescription();
+        for (MethodDescription m : methods)
+            if (!m.isMethod() || !m.isVisibleTo(self))
+                throw new IllegalArgumentException("not an accessible method " + m + " for " + name);
+        TypeBuilder tb = TypeBuilder.with(b);
+        define(tb, self, methods, "invoke", Object.class, new Class<?>[]{Object[].class}, i -> true, (c, i) -> {
+            MethodDescription m = methods.get(i);
+            c.loadParameter(0).loadParameter(2).constant(m.getParameters().size()).invoke(CHECK);
+            for (int j = 0; j < m.getParameters().size(); j++)
+                unpack(c.loadParameter(2).constant(j).arrayGet(), m.getParameters().get(j).getType().asErasure());
+        });
+        for (int k = 0; k <= ARITY; k++) {
+            int arity = k;
+            Class<?>[] params = new Class<?>[k];
+            for (int j = 0; j < k; j++) params[j] = Object.class;
+            define(tb, self, methods, "invoke", Object.class, params, i -> methods.get(i).getParameters().size() == arity, (c, i) -> {
+                MethodDescription m = methods.get(i);
+                for (int j = 0; j < arity; j++) unpack(c.loadParameter(2 + j), m.getParameters().get(j).getType().asErasure());
+            });
+        }
+        for (Class<?> lane : new Class<?>[]{long.class, double.class}) {
+            char code = lane == long.class ? 'J' : 'D';
+            for (int k = 0; k <= PRIMITIVE_ARITY; k++) {
+                int arity = k;
+                Class<?>[] params = new Class<?>[k];
+                for (int j = 0; j < k; j++) params[j] = lane;
+                define(tb, self, methods, lane == long.class ? "invokeLong" : "invokeDouble", lane, params,
+                        i -> methods.get(i).getParameters().size() == arity && lane(methods.get(i)) == code, (c, i) -> {
+                            MethodDescription m = methods.get(i);
+                            for (int j = 0; j < arity; j++) {
+                                TypeDescription p = m.getParameters().get(j).getType().asErasure();
+                                c.loadParameter(2 + j);
+                                //!! a != 0 as (a | -a) >>>63, a plain L2I drops the high word
+                                if (p.represents(boolean.class)) c.dup().neg().or().constant(63).ushr();
+                                c.convert(p);
+                            }
+                        });
+            }
+        }
+        return tb.$().get().make();
+    }
+
+    /**
+     * define an invoke method of {@code (int index, Object target, params...)result},
+     * which dispatches index of accepted methods
+     *
+     * @param args load arguments of method at index
+     */
+    static void define(TypeBuilder tb, TypeDescription self, List<? extends MethodDescription> methods,
+                       String name, Class<?> result, Class<?>[] params,
+                       IntPredicate accept, ObjIntConsumer<Assembler.Compute> args) {
+        Maker.MethodMaker method = Maker.method().declaringClass(self).name(name).modifiers(Modifier.PUBLIC).returnType(result)
+                .parameter(p -> p.name("index").type(int.class)).parameter(p -> p.name("target").type(Object.class));
+        for (int j = 0; j < params.length; j++) {
+            String arg = params[j].isArray() ? "args" : "a" + j;
+            Class<?> type = params[j];
+            method.parameter(p -> p.name(arg).type(type));
+        }
+        List<Integer> accepted = new ArrayList<>();
+        for (int i = 0; i < methods.size(); i++) if (accept.test(i)) accepted.add(i);
+        int[] keys = accepted.stream().mapToInt(Integer::intValue).toArray();
+        TypeDescription type = TypeDescription.ForLoadedType.of(result);
+        tb.methodCompute(method.make(), c -> {
+            if (keys.length > 0) {
+                Label dflt = new Label();
+                Label[] labels = FieldAccessor.labels(keys.length);
+                c.loadParameter(0).switchInt(dflt, keys, labels);
+                for (int i = 0; i < keys.length; i++) {
+                    MethodDescription m = methods.get(keys[i]);
+                    c.label(labels[i]);
+                    if (!m.isStatic()) c.loadParameter(1).cast(m.getDeclaringType().asErasure(), true);
+                    args.accept(c, keys[i]);
+                    c.invoke(m);
+                    TypeDescription r = m.getReturnType().asErasure();
+                    if (r.represents(void.class)) {
+                        if (!type.isPrimitive()) c.constNull(TypeDescription.OBJECT);
+                        else if (type.represents(long.class)) c.constant(0L);
+                        else c.constant(0.0);
+                    } else if (!type.isPrimitive()) {
+                        if (r.isPrimitive()) c.box();
+                    } else c.convert(type);
+                    c.returns();
+                }
+                c.label(dflt);
+            }
+            return c.loadParameter(0).invoke(INVALID).aThrow();
+        });
+    }
+
+    /**
+     * cast or unbox an Object on stack to type
+     */
+    static void unpack(Assembler.Compute c, TypeDescription type) {
+        if (type.isPrimitive()) c.cast(type.asBoxed(), true).unbox();
+        else if (!type.represents(Object.class)) c.cast(type, true);
+    }
+
+    /**
+     * generate and load an invoker of methods in the package of host
+     */
+    public static MethodInvoker of(Class<?> host, Method... methods) {
+        List<MethodDescription> ms = new ArrayList<>(methods.length);
+        for (Method m : methods) ms.add(new MethodDescription.ForLoadedMethod(m));
+        DynamicType.Unloaded<?> u = make(host.getName() + SUFFIX + SEQ.incrementAndGet(), ms, ClassFileVersion.ofThisVm(ClassFileVersion.JAVA_V8));
+        try {
+            return (MethodInvoker) TypeBuilder.inject(host, u).getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("fail to create invoker in " + host, e);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2022. Zen Liu.
+ * SPDX-License-Identifier: GPL-2.0-only WITH Classpath-exception-2.0
+ */
+
+package cn.zenliu.assembler;
+
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.bytecode.StackManipulation;
+import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+import net.bytebuddy.implementation.bytecode.constant.TextConstant;
+import net.bytebuddy.jar.asm.Label;
+import net.bytebuddy.matcher.ElementMatchers;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * PerfectHash builds a minimal perfect hash by hash and displace (CHD) for a constant String or int key set,
+ * and defines it on a type as static final tables plus a static probe method {@code int name(key)},
+ * which returns the index of the key in the key set or -1, with a single verification compare and no allocation.
+ * <p>
+ * The hash of a String key is a seeded hash over its chars, the seed is chosen to give distinct hashes of the key set,
+ * so keys with equal {@link String#hashCode()} are supported, which is only used as a fast pre-check before equals.
+ * Tables are filled by helper methods of at most {@link #CHUNK} elements, so large key sets never hit the method size limit.
+ *
+ * @author Zen.Liu
+ * @since 2022-11-20
+ */
+public final class PerfectHash {
+    /**
+     * max tries of displacement for one bucket
+     */
+    static final int TRIES = 1 << 20;
+    /**
+     * average keys per bucket
+     */
+    static final int LOAD = 3;
+    /**
+     * max tries of seed for String keys
+     */
+    static final int SEEDS = 256;
+    /**
+     * max elements filled by one helper method
+     */
+    static final int CHUNK = 1024;
+    static final int PRIME = 0x01000193;
+    static final MethodDescription STRING_LENGTH = TypeDescription.STRING.getDeclaredMethods()
+            .filter(ElementMatchers.named("length").and(ElementMatchers.takesArguments(0))).getOnly();
+    static final MethodDescription STRING_CHAR_AT = TypeDescription.STRING.getDeclaredMethods()
+            .filter(ElementMatchers.named("charAt").and(ElementMatchers.takesArguments(int.class))).getOnly();
+    final String[] texts;
+    final int[] numbers;
+    /**
+     * displacement of each bucket
+     */
+    final int[] displace;
+    /**
+     * index in key set of the key at each slot
+     */
+    final int[] index;
+    /**
+     * seed of String hash
+     */
+    final int seed;
+
+    PerfectHash(String[] texts, int[] numbers, int[] displace, int[] index, int seed) {
+        this.texts = texts;
+        this.numbers = numbers;
+        this.displace = displace;
+        this.index = index;
+        this.seed = seed;
+    }
+
+    /**
+     * seeded hash of String, the probe method emits the same operations
+     */
+    static int hash(String s, int seed) {
+        int h = seed;
+        for (int i = 0; i < s.length(); i++) h = (h ^ s.charAt(i)) * PRIME;
+        return h;
+    }
+
+    /**
+     * mix a hash with a seed, the probe method emits the same operations
+     */
+    static int mix(int h, int seed) {
+        int x = (h ^ seed) * 0x9E3779B9;
+        x ^= x >>> 15;
+        x *= 0x85EBCA6B;
+        return x ^ x >>> 13;
+    }
+
+    static int index(int x, int length) {
+        return (x & Integer.MAX_VALUE) % length;
+    }
+
+    /**
+     * @param keys distinct keys
+     */
+    public static PerfectHash of(String... keys) {
+        Set<String> distinct = new HashSet<>();
+        for (String k : keys) if (!distinct.add(k)) throw new IllegalArgumentException("duplicate key " + k);
+        int[] h = new int[keys.length];
+        int seed = 0x811C9DC5;
+        for (int t = 0; t < SEEDS; t++, seed += 0x9E3779B9) {
+            for (int i = 0; i < keys.length; i++) h[i] = hash(keys[i], seed);
+            if (distinct(h)) return build(keys, null, h, seed);
+        }
+        throw new IllegalStateException("no seed found for distinct hashes of " + keys.length + " keys");
+    }
+
+    /**
+     * @param keys distinct keys
+     */
+    public static PerfectHash of(int... keys) {
+        if (!distinct(keys)) throw new IllegalArgumentException("duplicate keys");
+        return build(null, keys, keys.clone(), 0);
+    }
+
+    static boolean distinct(int[] h) {
+        int[] sorted = h.clone();
+        Arrays.sort(sorted);
+        for (int i = 1; i < sorted.length; i++) if (sorted[i] == sorted[i - 1]) return false;
+        return true;
+    }
+
+    /**
+     * @param h distinct hashes of keys
+     */
+    static PerfectHash build(String[] texts, int[] numbers, int[] h, int seed) {
+        int n = h.length;
+        if (n == 0) throw new IllegalArgumentException("empty key set");
+        int r = (n + LOAD - 1) / LOAD;
+        List<List<Integer>> buckets = new ArrayList<>(r);
+        for (int i = 0; i < r; i++) buckets.add(new ArrayList<>(LOAD));
+        for (int i = 0; i < n; i++) buckets.get(index(mix(h[i], 0), r)).add(i);
+        Integer[] order = new Integer[r];
+        for (int i = 0; i < r; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+        int[] displace = new int[r];
+        int[] index = new int[n];
+        int[] slots = new int[LOAD * 4];
+        boolean[] taken = new boolean[n];
+        for (int b : order) {
+            List<Integer> keys = buckets.get(b);
+            if (keys.isEmpty()) break;
+            if (slots.length < keys.size()) slots = new int[keys.size()];
+            int d = 1;
+            for (; d < TRIES; d++) {
+                int k = 0;
+                for (; k < keys.size(); k++) {
+                    int s = index(mix(h[keys.get(k)], d), n);
+                    if (taken[s]) break;
+                    taken[s] = true;
+                    slots[k] = s;
+                }
+                if (k == keys.size()) break;
+                for (int j = 0; j < k; j++) taken[slots[j]] = false;
+            }
+            if (d == TRIES) throw new IllegalStateException("no displacement found for bucket of " + keys.size() + " keys");
+            displace[b] = d;
+            for (int k = 0; k < keys.size(); k++) index[slots[k]] = keys.get(k);
+        }
+        String[] t = null;
+        int[] m = null;
+        if (texts != null) {
+            t = new String[n];
+            for (int s = 0; s < n; s++) t[s] = texts[index[s]];
+        } else {
+            m = new int[n];
+            for (int s = 0; s < n; s++) m[s] = numbers[index[s]];
+        }
+        return new PerfectHash(t, m, displace, index, seed);
+    }
+
+    /**
+     * @return count of keys
+     */
+    public int size() {
+        return index.length;
+    }
+
+    /**
+     * @return count of buckets, the length of displacement table
+     */
+    public int buckets() {
+        return displace.length;
+    }
+
+    int slot(int h) {
+        return index(mix(h, displace[index(mix(h, 0), displace.length)]), index.length);
+    }
+
+    /**
+     * lookup on the host, the same as the generated probe method
+     *
+     * @return index of key in key set or -1
+     */
+    public int lookup(String key) {
+        assert texts != null : "not a String key set";
+        int s = slot(hash(key, seed));
+        return texts[s].hashCode() == key.hashCode() && texts[s].equals(key) ? index[s] : -1;
+    }
+
+    /**
+     * @see #lookup(String)
+     */
+    public int lookup(int key) {
+        assert numbers != null : "not an int key set";
+        int s = slot(key);
+        return numbers[s] == key ? index[s] : -1;
+    }
+
+    /**
+     * define tables as static final fields {@code name_displace}, {@code name_keys}, {@code name_index} with initializer,
+     * filled by static helper methods {@code name_displaceN}, {@code name_keysN}, {@code name_indexN} of each chunk,
+     * and the static probe method {@code int name(key)}.
+     *
+     * @param builder the type builder
+     * @param name    the probe method name
+     */
+    public TypeBuilder define(TypeBuilder builder, String name) {
+        TypeDescription target = builder.$().get().toTypeDescription();
+        int mod = Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL;
+        Class<?> keyType = texts != null ? String.class : int.class;
+        FieldDescription disp = Maker.field().declaringClass(target).name(name + "_displace").modifiers(mod).type(int[].class).make();
+        FieldDescription keys = Maker.field().declaringClass(target).name(name + "_keys").modifiers(mod).type(texts != null ? String[].class : int[].class).make();
+        FieldDescription idx = Maker.field().declaringClass(target).name(name + "_index").modifiers(mod).type(int[].class).make();
+        MethodDescription probe = Maker.method().declaringClass(target).name(name)
+                .modifiers(Modifier.PUBLIC | Modifier.STATIC).returnType(int.class)
+                .parameter(p -> p.name("key").type(keyType)).make();
+        StackManipulation[] values;
+        if (texts != null) {
+            values = new StackManipulation[texts.length];
+            for (int i = 0; i < texts.length; i++) values[i] = new TextConstant(texts[i]);
+        } else values = constants(numbers);
+        Assembler.Manual init = Assembler.manual();
+        fill(builder, target, init, disp, constants(displace));
+        fill(builder, target, init, keys, values);
+        fill(builder, target, init, idx, constants(index));
+        return builder
+                .sync(b -> b.defineField(disp.getName(), int[].class, mod)
+                        .defineField(keys.getName(), keys.getType(), mod)
+                        .defineField(idx.getName(), int[].class, mod)
+                        .initializer(init))
+                .methodCompute(probe, c -> {
+                    Label miss = new Label();
+                    //!! locals: hash, then for String the end and induction variable of char loop, then slot
+                    int slot = 1;
+                    if (texts != null) {
+                        c.constant(seed).storeLocal()
+                                .constant(0).loadParameter(0).invoke(STRING_LENGTH)
+                                .forRange(null, 1, (b, i) -> b.loadLocal(0).loadParameter(0).loadLocal(i).invoke(STRING_CHAR_AT)
+                                        .xor().constant(PRIME).mul().storeLocal(0));
+                        slot = 3;
+                    } else c.loadParameter(0).storeLocal();
+                    c.readField(disp).loadLocal(0).constant(0);
+                    index(mix(c), displace.length).arrayGet().loadLocal(0);
+                    index(mix(c), index.length).storeLocal()
+                            .readField(keys).loadLocal(slot).arrayGet();
+                    if (texts != null) {
+                        c.invoke(Assembler.ByteCodeManipulates.STRING_HASH_CODE)
+                                .loadParameter(0).invoke(Assembler.ByteCodeManipulates.STRING_HASH_CODE).jn(null, miss)
+                                .readField(keys).loadLocal(slot).arrayGet()
+                                .loadParameter(0).invoke(Assembler.ByteCodeManipulates.STRING_EQUALS).jz(null, miss);
+                    } else c.loadParameter(0).jn(null, miss);
+                    return c.readField(idx).loadLocal(slot).arrayGet().returns()
+                            .label(miss).constant(-1).returns();
+                });
+    }
+
+    /**
+     * emit in init: create the array of field, fill it by static helper methods of each {@link #CHUNK} values, then put the field
+     */
+    static void fill(TypeBuilder builder, TypeDescription target, Assembler.Manual init, FieldDescription field, StackManipulation[] values) {
+        TypeDescription array = field.getType().asErasure();
+        TypeDescription component = array.getComponentType();
+        init.append(IntegerConstant.forValue(values.length)).NEWARRAY(component);
+        for (int from = 0, n = 0; from < values.length; from += CHUNK, n++) {
+            int to = Math.min(from + CHUNK, values.length), start = from;
+            MethodDescription helper = Maker.method().declaringClass(target).name(field.getName() + n)
+                    .modifiers(Modifier.PRIVATE | Modifier.STATIC)
+                    .parameter(p -> p.name("array").type(array.asGenericType())).make();
+            builder.methodManual(helper, m -> {
+                for (int i = start; i < to; i++) {
+                    m.ALOAD(0).append(IntegerConstant.forValue(i)).append(values[i]);
+                    if (component.isPrimitive()) m.IASTORE();
+                    else m.AASTORE();
+                }
+                return m.RETURN();
+            });
+            init.DUP().INVOKE(helper);
+        }
+        init.PUTFIELD(field);
+    }
+
+    /**
+     * emit {@link #mix(int, int)} of the two int on stack
+     */
+    static Assembler.Compute mix(Assembler.Compute c) {
+        return c.xor().constant(0x9E3779B9).mul()
+                .dup().constant(15).ushr().xor()
+                .constant(0x85EBCA6B).mul()
+                .dup().constant(13).ushr().xor();
+    }
+
+    /**
+     * emit {@link #index(int, int)} of the int on stack
+     */
+    static Assembler.Compute index(Assembler.Compute c, int length) {
+        return c.constant(Integer.MAX_VALUE).and().constant(length).rem();
+    }
+
+    static StackManipulation[] constants(int[] values) {
+        StackManipulation[] r = new StackManipulation[values.length];
+        for (int i = 0; i < values.length; i++) r[i] = IntegerConstant.forValue(values[i]);
+        return r;
+    }
+}
@@ -7,9 +7,13 @@ package cn.zenliu.assembler;
 
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.loading.ClassInjector;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
 import net.bytebuddy.implementation.Implementation;
 
+import java.lang.invoke.MethodHandles;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.UnaryOperator;
 
 /**
@@ -37,9 +41,27 @@ public interface TypeBuilder {
     default TypeBuilder methodCompute(MethodDescription m, UnaryOperator<Assembler.Compute> impl) {
         return sync(b -> b.define(m).intercept(impl.apply(Assembler.compute(b.toTypeDescription(),m)).implementation()));
     }
+    default TypeBuilder methodCompute(MethodDescription m, Assembler.Members members, UnaryOperator<Assembler.Compute> impl) {
+        return sync(b -> b.define(m).intercept(impl.apply(Assembler.compute(b.toTypeDescription(),m,members)).implementation()));
+    }
+    default TypeBuilder methodStream(MethodDescription m, Consumer<Assembler.Compute> impl) {
+        return sync(b -> b.define(m).intercept(Assembler.stream(b.toTypeDescription(),m,impl).implementation()));
+    }
 
     static TypeBuilder with(DynamicType.Builder b) {
         AtomicReference<DynamicType.Builder> h = new AtomicReference<>(b);
         return () -> h;
     }
+
+    /**
+     * define a generated type in the package and class loader of the host class at runtime,
+     * by a private lookup when available, otherwise by injection.
+     *
+     * @return the loaded generated type
+     */
+    static Class<?> inject(Class<?> host, DynamicType.Unloaded<?> type) {
+        if (ClassInjector.UsingLookup.isAvailable())
+            return ClassInjector.UsingLookup.of(MethodHandles.lookup()).in(host).inject(type.getAllTypes()).get(type.getTypeDescription());
+        return type.load(host.getClassLoader(), ClassLoadingStrategy.Default.INJECTION).getLoaded();
+    }
 }